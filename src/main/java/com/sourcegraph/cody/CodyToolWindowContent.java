@@ -609,27 +609,26 @@ public class CodyToolWindowContent implements UpdatableChat {
       String repoName,
       String accessTokenOrEmpty) {
     List<ContextMessage> contextMessages = new ArrayList<>();
-    if (repoName != null) {
-      try {
-        contextMessages =
-            new ContextGetter(
-                    repoName,
-                    instanceUrl,
-                    accessTokenOrEmpty,
-                    ConfigUtil.getCustomRequestHeaders(project))
-                .getContextMessages(humanMessage.getText(), 8, 2, true);
-      } catch (IOException e) {
-        logger.warn(
-            "Unable to load context for message: "
-                + humanMessage.getText()
-                + ", in repo: "
-                + repoName,
-            e);
-        String message = e.getMessage();
-        if (message != null && message.contains("request failed with status code 401")) {
-          throw new InvalidAccessTokenException(
-              "Invalid access token while loading context messages", e);
-        }
+    try {
+      contextMessages =
+          new ContextGetter(
+                  project,
+                  repoName,
+                  instanceUrl,
+                  accessTokenOrEmpty,
+                  ConfigUtil.getCustomRequestHeaders(project))
+              .getContextMessages(humanMessage.getText(), 8, 2, true);
+    } catch (IOException e) {
+      logger.warn(
+          "Unable to load context for message: "
+              + humanMessage.getText()
+              + ", in repo: "
+              + repoName,
+          e);
+      String message = e.getMessage();
+      if (message != null && message.contains("request failed with status code 401")) {
+        throw new InvalidAccessTokenException(
+            "Invalid access token while loading context messages", e);
       }
     }
     return contextMessages;
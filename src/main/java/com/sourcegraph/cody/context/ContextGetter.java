@@ -1,32 +1,61 @@
 package com.sourcegraph.cody.context;
 
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
 import com.sourcegraph.cody.context.embeddings.EmbeddingsSearcher;
+import com.sourcegraph.cody.context.embeddings.LocalEmbeddingsSearcher;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class ContextGetter {
-  private final @NotNull String repoName;
+  private static final Logger logger = Logger.getInstance(ContextGetter.class);
+
+  private final @Nullable String repoName;
   private final @NotNull EmbeddingsSearcher embeddingsSearcher;
+  private final @NotNull LocalEmbeddingsSearcher localEmbeddingsSearcher;
 
   /**
-   * @param repoName Like "github.com/sourcegraph/cody"
+   * @param repoName Like "github.com/sourcegraph/cody", or null if the project is not a known
+   *     repository; only the local index is searched then
    * @param instanceUrl Like "https://sourcegraph.com/", with a slash at the end
    */
   public ContextGetter(
-      @NotNull String repoName,
+      @NotNull Project project,
+      @Nullable String repoName,
       @NotNull String instanceUrl,
       @NotNull String accessToken,
       @NotNull String customRequestHeaders) {
     this.repoName = repoName;
     embeddingsSearcher = new EmbeddingsSearcher(instanceUrl, accessToken, customRequestHeaders);
+    localEmbeddingsSearcher = new LocalEmbeddingsSearcher(project);
   }
 
+  /**
+   * Prefers the local JVector index once it can answer searches, and falls back to the Sourcegraph
+   * instance's embeddings while it is still being built, when it finds nothing, or when reading it
+   * fails.
+   */
   public @NotNull List<ContextMessage> getContextMessages(
       @NotNull String query, int codeResultCount, int textResultCount, boolean useEmbeddings)
       throws IOException {
-    if (useEmbeddings) {
+    if (useEmbeddings && localEmbeddingsSearcher.isAvailable()) {
+      try {
+        List<ContextMessage> messages =
+            localEmbeddingsSearcher.getContextMessages(query, codeResultCount, textResultCount);
+        if (!messages.isEmpty() || repoName == null) {
+          return messages;
+        }
+      } catch (IOException e) {
+        if (repoName == null) {
+          throw e;
+        }
+        logger.warn("Local embeddings search failed, searching " + repoName + " instead", e);
+      }
+    }
+    if (useEmbeddings && repoName != null) {
       return embeddingsSearcher.getContextMessages(
           repoName, query, codeResultCount, textResultCount);
     } else {
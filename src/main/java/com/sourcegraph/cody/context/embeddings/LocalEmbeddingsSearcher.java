@@ -0,0 +1,111 @@
+package com.sourcegraph.cody.context.embeddings;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.sourcegraph.cody.context.ContextFile;
+import com.sourcegraph.cody.context.ContextMessage;
+import com.sourcegraph.cody.prompts.Prompter;
+import com.sourcegraph.jvector.ChunkMatch;
+import com.sourcegraph.jvector.JVectorFileListener;
+import com.sourcegraph.jvector.JVectorFileListenerReference;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Searches the project's local JVector index instead of a Sourcegraph instance. Only the query is
+ * embedded remotely (or not at all, with an offline provider); the nearest-neighbor search runs
+ * in-process.
+ */
+public class LocalEmbeddingsSearcher {
+  private static final Logger logger = Logger.getInstance(LocalEmbeddingsSearcher.class);
+
+  private final @NotNull Project project;
+
+  public LocalEmbeddingsSearcher(@NotNull Project project) {
+    this.project = project;
+  }
+
+  /**
+   * True once the project's local index has been opened and can answer searches: it holds live
+   * chunks, or its first scan has finished.
+   */
+  public boolean isAvailable() {
+    JVectorFileListener listener = getListener();
+    return listener != null && listener.isReady();
+  }
+
+  /**
+   * Returns context messages shaped like {@link EmbeddingsSearcher#getContextMessages}: snippets
+   * grouped by file, least relevant file first, each followed by a default assistant message.
+   */
+  public @NotNull List<ContextMessage> getContextMessages(
+      @NotNull String query, int codeResultCount, int textResultCount) throws IOException {
+    JVectorFileListener listener = getListener();
+    if (listener == null) {
+      return new ArrayList<>();
+    }
+
+    long start = System.nanoTime();
+    List<ChunkMatch> matches;
+    try {
+      // the local index only holds code, so ask for both budgets' worth of code results
+      matches = listener.search(query, codeResultCount + textResultCount);
+    } catch (RuntimeException e) {
+      throw new IOException("Local embeddings search failed", e);
+    }
+    logger.debug(
+        String.format(
+            "Local embeddings search returned %d chunks in %d ms",
+            matches.size(), (System.nanoTime() - start) / 1_000_000));
+
+    // Group results by file, keeping files in order of their best match
+    Map<String, List<String>> snippetsByFile = new LinkedHashMap<>();
+    for (ChunkMatch match : matches) {
+      snippetsByFile
+          .computeIfAbsent(getRelativePath(match.filePath), k -> new ArrayList<>())
+          .add(match.body);
+    }
+    List<GroupedResults> groupedResults = new ArrayList<>();
+    for (Map.Entry<String, List<String>> entry : snippetsByFile.entrySet()) {
+      groupedResults.add(
+          new GroupedResults(new ContextFile(entry.getKey(), null, null), entry.getValue()));
+    }
+
+    // Reverse results so that they appear in ascending order of importance (least -> most)
+    Collections.reverse(groupedResults);
+
+    List<ContextMessage> messages = new ArrayList<>();
+    for (GroupedResults group : groupedResults) {
+      for (String snippet : group.getSnippets()) {
+        String contextPrompt = Prompter.getContextPrompt(group.getFile().getFileName(), snippet);
+        messages.add(ContextMessage.createHumanMessage(contextPrompt, group.getFile()));
+        messages.add(ContextMessage.createDefaultAssistantMessage());
+      }
+    }
+    return messages;
+  }
+
+  private @Nullable JVectorFileListener getListener() {
+    JVectorFileListenerReference reference =
+        project.getService(JVectorFileListenerReference.class);
+    return reference == null ? null : reference.getListener();
+  }
+
+  /** Paths are shown relative to the project, like the repository-relative remote results. */
+  private @NotNull String getRelativePath(@NotNull String filePath) {
+    String basePath = project.getBasePath();
+    if (basePath == null) {
+      return filePath;
+    }
+    Path base = Path.of(basePath);
+    Path path = Path.of(filePath);
+    return path.startsWith(base) ? base.relativize(path).toString() : filePath;
+  }
+}
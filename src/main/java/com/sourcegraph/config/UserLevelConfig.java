@@ -64,6 +64,30 @@ public class UserLevelConfig {
     return properties.getProperty("url", "");
   }
 
+  /** Reads a string-valued advanced property, falling back to the given default when missing. */
+  @NotNull
+  public static String getStringProperty(@NotNull String key, @NotNull String defaultValue) {
+    Properties properties = readProperties();
+    return properties.getProperty(key, defaultValue).trim();
+  }
+
+  /**
+   * Reads an integer-valued advanced property, falling back to the given default when the key is
+   * missing or not a valid integer.
+   */
+  public static int getIntProperty(@NotNull String key, int defaultValue) {
+    Properties properties = readProperties();
+    String value = properties.getProperty(key, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
   // readProps returns the first properties file it's able to parse from the following paths:
   //   $HOME/.sourcegraph-jetbrains.properties
   //   $HOME/sourcegraph-jetbrains.properties
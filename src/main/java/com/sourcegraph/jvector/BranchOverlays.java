@@ -0,0 +1,162 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mapdb.Atomic;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tracks which git branch is checked out and which branches were checked out most recently, so the index can
+ * keep an overlay per branch: the chunks of file versions that differ from what is checked out now.
+ * <p>
+ * When a file changes, the chunks it no longer has are parked rather than deleted: they stay in the vector store
+ * and the graph but are hidden from searches, tagged with the branch the file was indexed on. Checking that
+ * branch out again brings the old versions back, and re-indexing them finds every chunk among the parked ones by
+ * its hash, so they are shown again without embedding anything. A file keeps at most one parked version per
+ * branch, and the chunks parked on branches that fall out of the configured number of most recent ones are
+ * deleted.
+ * <p>
+ * Branches are read from {@code .git/HEAD}; a detached HEAD counts as a branch named by its commit. Outside a git
+ * repository everything is on the branch "", which still keeps the previous version of each edited file.
+ */
+class BranchOverlays {
+    private final @Nullable Path headPath;
+    private final int retained;
+    // most recently checked out first, one per line
+    private final Atomic.String recentBranches;
+    private volatile String head;
+
+    BranchOverlays(@Nullable Path projectDir, int retained, @NotNull Atomic.String recentBranches) {
+        this.headPath = projectDir == null ? null : findHead(projectDir);
+        this.retained = retained;
+        this.recentBranches = recentBranches;
+        this.head = readHead();
+    }
+
+    /**
+     * False if parking is disabled, in which case replaced chunks are deleted right away.
+     */
+    boolean isEnabled() {
+        return retained > 0;
+    }
+
+    /**
+     * The branch checked out as of the last {@link #refresh}.
+     */
+    @NotNull String head() {
+        return head;
+    }
+
+    /**
+     * True if path is the file that records the checked-out branch.
+     */
+    boolean isHeadFile(@NotNull String path) {
+        return headPath != null && Path.of(path).equals(headPath);
+    }
+
+    /**
+     * Re-reads the checked-out branch and moves it to the front of the recent branches.
+     *
+     * @return the branches that fell out of the retained ones, whose parked chunks should be deleted
+     */
+    @NotNull List<String> refresh() {
+        head = readHead();
+        return touch(head);
+    }
+
+    /**
+     * The commit checked out now, or the branch name if it cannot be resolved, e.g. in a linked worktree whose
+     * refs live in the main repository.
+     */
+    @NotNull String revision() {
+        var branch = readHead();
+        if (headPath == null || branch.isEmpty()) {
+            return branch;
+        }
+        var gitDir = headPath.getParent();
+        try {
+            var ref = gitDir.resolve("refs/heads").resolve(branch);
+            if (Files.isRegularFile(ref)) {
+                return Files.readString(ref).trim();
+            }
+            var packed = gitDir.resolve("packed-refs");
+            if (Files.isRegularFile(packed)) {
+                for (var line : Files.readAllLines(packed)) {
+                    if (line.endsWith(" refs/heads/" + branch)) {
+                        return line.substring(0, line.indexOf(' '));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // fall back to the branch name
+        }
+        return branch;
+    }
+
+    private synchronized @NotNull List<String> touch(@NotNull String branch) {
+        var recent = new ArrayList<String>();
+        var stored = recentBranches.get();
+        if (stored != null && !stored.isEmpty()) {
+            recent.addAll(Arrays.asList(stored.split("\n")));
+        }
+        recent.remove(branch);
+        recent.add(0, branch);
+        var evicted = new ArrayList<String>();
+        while (recent.size() > Math.max(1, retained)) {
+            evicted.add(recent.remove(recent.size() - 1));
+        }
+        recentBranches.set(String.join("\n", recent));
+        return evicted;
+    }
+
+    private @NotNull String readHead() {
+        if (headPath == null) {
+            return "";
+        }
+        try {
+            return parseHead(Files.readString(headPath));
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    /**
+     * The branch name of a symbolic ref such as {@code ref: refs/heads/main}, or the commit of a detached HEAD.
+     */
+    static @NotNull String parseHead(@NotNull String contents) {
+        var head = contents.trim();
+        if (head.startsWith("ref:")) {
+            head = head.substring("ref:".length()).trim();
+            if (head.startsWith("refs/heads/")) {
+                head = head.substring("refs/heads/".length());
+            }
+        }
+        return head;
+    }
+
+    /**
+     * The HEAD file of the repository at projectDir. In a linked worktree {@code .git} is a file pointing at the
+     * worktree's git directory.
+     */
+    private static @Nullable Path findHead(@NotNull Path projectDir) {
+        var git = projectDir.resolve(".git");
+        if (Files.isDirectory(git)) {
+            return git.resolve("HEAD");
+        }
+        try {
+            var contents = Files.readString(git).trim();
+            if (contents.startsWith("gitdir:")) {
+                return projectDir.resolve(contents.substring("gitdir:".length()).trim()).normalize().resolve("HEAD");
+            }
+        } catch (IOException e) {
+            // not a git repository
+        }
+        return null;
+    }
+}
@@ -0,0 +1,212 @@
+package com.sourcegraph.jvector;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.mapdb.DB;
+import org.mapdb.DBException;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Wraps an {@link EmbeddingsProvider} with a persistent cache from the SHA-256 of a chunk's text to its vector.
+ * Identical chunks in other files, other branches or other projects are embedded once.
+ * <p>
+ * The cache lives in a single MapDB file in the codelocal system directory, shared by every open project, with one
+ * map per {@link EmbeddingsProvider#modelId()}. Each map is bounded by entry count; reads refresh an entry's
+ * position in the expiration queue, so the least recently used vectors are evicted first.
+ * <p>
+ * New vectors are committed after every batch, so a crash loses at most the batch in flight. The cache only saves
+ * embedding calls, so a file that cannot be opened is deleted and started over rather than failing indexing.
+ */
+public class CachingEmbeddingsProvider implements EmbeddingsProvider {
+    private static final Logger log = Logger.getInstance(CachingEmbeddingsProvider.class);
+
+    // the MapDB file can only be opened once per process, so projects share it
+    private static final Map<Path, SharedDB> openDBs = new HashMap<>();
+
+    private final EmbeddingsProvider delegate;
+    private final Path path;
+    private final DB db;
+    private final HTreeMap<byte[], float[]> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CachingEmbeddingsProvider(@NotNull EmbeddingsProvider delegate, @NotNull Path path, long maxBytes) {
+        this.delegate = delegate;
+        this.path = path;
+        // vector payload plus MapDB's per-entry overhead for the key, node and expiration queue
+        long entryBytes = (long) delegate.dimension() * Float.BYTES + 128;
+        long maxEntries = Math.max(1, maxBytes / entryBytes);
+        db = acquire(path);
+        synchronized (db) {
+            cache = db.hashMap("embeddings:" + delegate.modelId(), Serializer.BYTE_ARRAY, Serializer.FLOAT_ARRAY)
+                    .expireMaxSize(maxEntries)
+                    .expireAfterCreate()
+                    .expireAfterGet()
+                    .createOrOpen();
+        }
+    }
+
+    private static synchronized DB acquire(@NotNull Path path) {
+        var shared = openDBs.get(path);
+        if (shared == null) {
+            shared = new SharedDB(openDB(path));
+            openDBs.put(path, shared);
+        }
+        shared.references++;
+        return shared.db;
+    }
+
+    private static synchronized void release(@NotNull Path path) {
+        var shared = openDBs.get(path);
+        if (shared != null && --shared.references == 0) {
+            openDBs.remove(path);
+            shared.db.commit();
+            shared.db.close();
+        }
+    }
+
+    /**
+     * Opens the cache file, recreating it if it is corrupt, e.g. written by a version without transactions that
+     * was killed. If another IDE process holds the file, the cache lives in memory until the project is closed.
+     */
+    static @NotNull DB openDB(@NotNull Path path) {
+        try {
+            return DBMaker.fileDB(path.toFile()).fileMmapEnable().transactionEnable().make();
+        } catch (DBException.FileLocked e) {
+            log.warn("Embedding cache " + path + " is in use by another process, caching in memory instead", e);
+            return DBMaker.memoryDB().make();
+        } catch (DBException e) {
+            log.warn("Embedding cache " + path + " is unreadable, starting over", e);
+        }
+        try {
+            deleteFiles(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return DBMaker.fileDB(path.toFile()).fileMmapEnable().transactionEnable().make();
+    }
+
+    /**
+     * Deletes the cache file and its write-ahead log.
+     */
+    private static void deleteFiles(@NotNull Path path) throws IOException {
+        Files.deleteIfExists(path);
+        var prefix = path.getFileName() + ".wal.";
+        try (var siblings = Files.list(path.toAbsolutePath().getParent())) {
+            for (var sibling : siblings.collect(Collectors.toList())) {
+                if (sibling.getFileName().toString().startsWith(prefix)) {
+                    Files.deleteIfExists(sibling);
+                }
+            }
+        }
+    }
+
+    @Override
+    public float[] getEmbedding(String body) {
+        return getEmbeddings(List.of(body)).get(0);
+    }
+
+    /**
+     * Looks every body up in the cache and sends only the misses, deduplicated, to the wrapped provider.
+     */
+    @Override
+    public List<float[]> getEmbeddings(List<String> bodies) {
+        var embeddings = new float[bodies.size()][];
+        // distinct missing bodies, each with the positions it fills
+        var missing = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < bodies.size(); i++) {
+            var body = bodies.get(i);
+            var cached = cache.get(digest(body));
+            if (cached != null && cached.length == delegate.dimension()) {
+                embeddings[i] = cached;
+            } else {
+                missing.computeIfAbsent(body, k -> new ArrayList<>()).add(i);
+            }
+        }
+        hits.addAndGet(bodies.size() - missing.size());
+        misses.addAndGet(missing.size());
+
+        if (!missing.isEmpty()) {
+            var toEmbed = new ArrayList<>(missing.keySet());
+            var computed = delegate.getEmbeddings(toEmbed);
+            for (int i = 0; i < toEmbed.size(); i++) {
+                var embedding = computed.get(i);
+                cache.put(digest(toEmbed.get(i)), embedding);
+                for (var position : missing.get(toEmbed.get(i))) {
+                    embeddings[position] = embedding;
+                }
+            }
+            db.commit();
+        }
+
+        var result = new ArrayList<float[]>(embeddings.length);
+        for (var embedding : embeddings) {
+            result.add(embedding);
+        }
+        return result;
+    }
+
+    private static byte[] digest(@NotNull String body) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public int countTokens(String text) {
+        return delegate.countTokens(text);
+    }
+
+    @Override
+    public int maxInputTokens() {
+        return delegate.maxInputTokens();
+    }
+
+    @Override
+    public int dimension() {
+        return delegate.dimension();
+    }
+
+    @Override
+    public String modelId() {
+        return delegate.modelId();
+    }
+
+    @Override
+    public void close() {
+        log.info(String.format("Embedding cache for %s: %d hits, %d misses", modelId(), hits.get(), misses.get()));
+        try {
+            delegate.close();
+        } finally {
+            release(path);
+        }
+    }
+
+    private static class SharedDB {
+        public final DB db;
+        public int references;
+
+        private SharedDB(DB db) {
+            this.db = db;
+        }
+    }
+}
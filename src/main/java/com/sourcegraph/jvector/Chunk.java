@@ -0,0 +1,79 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A piece of a file's text produced by a {@link Chunker}, with its character range in the text as the IDE loads
+ * it (line separators normalized to '\n').
+ * <p>
+ * The index stores the range rather than the text, packed into one long by {@link #range}, and reads the text
+ * back from the file when a search returns the chunk. Text that cannot be read back that way, because the file
+ * has changed since, is stored {@link #compress compressed} instead.
+ */
+public class Chunk {
+    public final String text;
+    public final int start;
+    public final int end;
+
+    public Chunk(@NotNull String text, int start, int end) {
+        this.text = text;
+        this.start = start;
+        this.end = end;
+    }
+
+    static long range(int start, int end) {
+        return (long) start << 32 | end & 0xffffffffL;
+    }
+
+    static int start(long range) {
+        return (int) (range >>> 32);
+    }
+
+    static int end(long range) {
+        return (int) range;
+    }
+
+    static byte @NotNull [] compress(@NotNull String text) {
+        var deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            var out = new ByteArrayOutputStream();
+            var buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static @NotNull String decompress(byte @NotNull [] compressed) {
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            var out = new ByteArrayOutputStream();
+            var buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && !inflater.finished() && inflater.needsInput()) {
+                    throw new IllegalArgumentException("Truncated chunk text");
+                }
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt chunk text", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
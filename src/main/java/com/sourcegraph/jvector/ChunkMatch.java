@@ -0,0 +1,18 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A chunk returned by a local search: the file it came from, its text, and its similarity to the query.
+ */
+public class ChunkMatch {
+    public final String filePath;
+    public final String body;
+    public final float score;
+
+    public ChunkMatch(@NotNull String filePath, @NotNull String body, float score) {
+        this.filePath = filePath;
+        this.body = body;
+        this.score = score;
+    }
+}
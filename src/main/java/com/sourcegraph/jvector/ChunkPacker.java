@@ -0,0 +1,148 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Packs a syntax tree into chunks of at most maxTokens tokens that follow the tree's structure.
+ * <p>
+ * A node that fits the budget becomes one chunk. A node that does not is replaced by its children, and runs of
+ * consecutive children are packed greedily, so small declarations (fields, short methods, a class header) share a
+ * chunk while large ones are split further down. Leaves that are still too large are split at line boundaries, and
+ * single lines that are too large at character boundaries, which is the only place a chunk can cut a token.
+ * <p>
+ * The tree is described by {@link Tree} so that the packing is independent of PSI.
+ */
+class ChunkPacker<T> {
+    interface Tree<T> {
+        int start(@NotNull T node);
+
+        int end(@NotNull T node);
+
+        @NotNull List<T> children(@NotNull T node);
+    }
+
+    private final String text;
+    private final Tree<T> tree;
+    private final ToIntFunction<String> tokenCounter;
+    private final int maxTokens;
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    private ChunkPacker(String text, Tree<T> tree, ToIntFunction<String> tokenCounter, int maxTokens) {
+        this.text = text;
+        this.tree = tree;
+        this.tokenCounter = tokenCounter;
+        this.maxTokens = maxTokens;
+    }
+
+    /**
+     * Returns the chunks of text (the full text of root) in document order, with the range of text each was taken
+     * from. Chunks without any letters or digits, such as a lone closing brace, are dropped.
+     */
+    static <T> @NotNull List<Chunk> packChunks(@NotNull String text,
+                                               @NotNull T root,
+                                               @NotNull Tree<T> tree,
+                                               @NotNull ToIntFunction<String> tokenCounter,
+                                               int maxTokens)
+    {
+        var packer = new ChunkPacker<>(text, tree, tokenCounter, Math.max(1, maxTokens));
+        packer.packNode(root, packer.tokens(tree.start(root), tree.end(root)));
+        return packer.chunks;
+    }
+
+    private int tokens(int start, int end) {
+        return tokenCounter.applyAsInt(text.substring(start, end));
+    }
+
+    private void packNode(T node, int tokens) {
+        int start = tree.start(node);
+        int end = tree.end(node);
+        if (tokens <= maxTokens) {
+            emit(start, end);
+            return;
+        }
+        var children = tree.children(node);
+        if (children.isEmpty()) {
+            splitLines(start, end);
+            return;
+        }
+
+        int runStart = -1;
+        int runEnd = -1;
+        int runTokens = 0;
+        for (var child : children) {
+            int childTokens = tokens(tree.start(child), tree.end(child));
+            if (childTokens > maxTokens) {
+                emit(runStart, runEnd);
+                runStart = -1;
+                runTokens = 0;
+                packNode(child, childTokens);
+                continue;
+            }
+            if (runStart >= 0 && runTokens + childTokens > maxTokens) {
+                emit(runStart, runEnd);
+                runStart = -1;
+                runTokens = 0;
+            }
+            if (runStart < 0) {
+                runStart = tree.start(child);
+            }
+            runEnd = tree.end(child);
+            runTokens += childTokens;
+        }
+        emit(runStart, runEnd);
+    }
+
+    private void splitLines(int start, int end) {
+        int runStart = start;
+        int runTokens = 0;
+        int lineStart = start;
+        while (lineStart < end) {
+            int newline = text.indexOf('\n', lineStart);
+            int lineEnd = newline < 0 || newline >= end ? end : newline + 1;
+            int lineTokens = tokens(lineStart, lineEnd);
+            if (lineTokens > maxTokens) {
+                emit(runStart, lineStart);
+                splitCharacters(lineStart, lineEnd, lineTokens);
+                runStart = lineEnd;
+                runTokens = 0;
+            } else if (runTokens + lineTokens > maxTokens) {
+                emit(runStart, lineStart);
+                runStart = lineStart;
+                runTokens = lineTokens;
+            } else {
+                runTokens += lineTokens;
+            }
+            lineStart = lineEnd;
+        }
+        emit(runStart, end);
+    }
+
+    private void splitCharacters(int start, int end, int tokens) {
+        // assume tokens are spread evenly over the line
+        int length = Math.max(1, (int) ((long) (end - start) * maxTokens / tokens));
+        for (int i = start; i < end; i += length) {
+            emit(i, Math.min(end, i + length));
+        }
+    }
+
+    private void emit(int start, int end) {
+        if (start < 0 || start >= end) {
+            return;
+        }
+        // strip, keeping track of where the stripped text lies
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        var chunk = text.substring(start, end);
+        if (chunk.codePoints().anyMatch(Character::isLetterOrDigit)) {
+            chunks.add(new Chunk(chunk, start, end));
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.sourcegraph.jvector;
+
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Splits a file into the pieces of text that are embedded and returned as search results.
+ * Called under a read action.
+ */
+public interface Chunker {
+    @NotNull List<Chunk> chunk(@NotNull PsiFile file);
+}
@@ -0,0 +1,79 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Groups embedding inputs into requests that respect a provider's per-request input-count and token budgets.
+ */
+public class EmbeddingBatches {
+    private EmbeddingBatches() {
+    }
+
+    /**
+     * Splits bodies into consecutive batches of at most maxInputs bodies and at most maxTokens tokens each.
+     * A single body that exceeds maxTokens on its own is still sent, alone in its batch, and left to the
+     * provider to reject or truncate. Concatenating the batches yields the original list.
+     */
+    public static @NotNull List<List<String>> partition(@NotNull List<String> bodies,
+                                                        int maxInputs,
+                                                        int maxTokens,
+                                                        @NotNull ToIntFunction<String> tokenCounter)
+    {
+        var batches = new ArrayList<List<String>>();
+        var current = new ArrayList<String>();
+        long currentTokens = 0;
+        for (var body : bodies) {
+            int tokens = tokenCounter.applyAsInt(body);
+            if (!current.isEmpty() && (current.size() >= maxInputs || currentTokens + tokens > maxTokens)) {
+                batches.add(current);
+                current = new ArrayList<>();
+                currentTokens = 0;
+            }
+            current.add(body);
+            currentTokens += tokens;
+        }
+        if (!current.isEmpty()) {
+            batches.add(current);
+        }
+        return batches;
+    }
+
+    /**
+     * Cheap, conservative token estimate for source code without a model-specific tokenizer.
+     * BPE vocabularies usually encode short identifiers as a single token and split long ones
+     * every few characters, while most punctuation costs a token of its own.
+     */
+    public static int estimateTokens(@NotNull String text) {
+        int tokens = 0;
+        int i = 0;
+        int n = text.length();
+        while (i < n) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '_') {
+                int start = i;
+                while (i < n && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_')) {
+                    i++;
+                }
+                tokens += 1 + (i - start - 1) / 4;
+            } else if (Character.isWhitespace(c)) {
+                // a single space is merged into the following word; longer runs such as
+                // newline-plus-indentation typically become one token of their own
+                int start = i;
+                while (i < n && Character.isWhitespace(text.charAt(i))) {
+                    i++;
+                }
+                if (i - start > 1 || c == '\n') {
+                    tokens++;
+                }
+            } else {
+                i++;
+                tokens++;
+            }
+        }
+        return tokens;
+    }
+}
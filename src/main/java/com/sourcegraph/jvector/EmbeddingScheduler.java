@@ -0,0 +1,288 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Paces requests to a rate-limited embeddings endpoint, so that a long scan slows down under throttling instead
+ * of failing file after file.
+ * <p>
+ * Three limits apply before a request is sent:
+ * <ul>
+ * <li>Concurrency adapts AIMD-style between 1 and the configured maximum: every successful request raises the
+ * limit by 1/limit, so it grows by one per round of requests, and a throttled or failed one halves it. Requests
+ * already in flight when the limit drops fail against the same overload, so the limit is halved at most once per
+ * round.</li>
+ * <li>Requests and tokens per minute are token buckets. Their capacity comes from configuration or, when that is
+ * 0, from the {@code x-ratelimit-limit-*} headers of OpenAI-compatible responses, and the
+ * {@code x-ratelimit-remaining-*} headers correct the estimate whenever the server's count is lower.</li>
+ * <li>A {@code Retry-After} header, or an exhausted budget with a {@code x-ratelimit-reset-*} time, pauses every
+ * request until then.</li>
+ * </ul>
+ * Requests that fail with a {@link RetryableException} are retried with exponential backoff and full jitter, up to
+ * the configured number of attempts.
+ */
+public class EmbeddingScheduler {
+    private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // durations such as "6m0s", "1.5s" or "20ms", as used by the x-ratelimit-reset-* headers
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+
+    private final int maxConcurrency;
+    private final int maxAttempts;
+    private final long baseBackoffNanos;
+    private final Bucket requests;
+    private final Bucket tokens;
+
+    // guarded by this
+    private double limit;
+    private int inFlight;
+    private long started;
+    // requests started before this count were sent under the limit that was halved last
+    private long lastDecreaseAt = -1;
+    private long pausedUntil;
+
+    public EmbeddingScheduler(int maxConcurrency, int requestsPerMinute, int tokensPerMinute, int maxAttempts) {
+        this(maxConcurrency, requestsPerMinute, tokensPerMinute, maxAttempts, TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    EmbeddingScheduler(int maxConcurrency, int requestsPerMinute, int tokensPerMinute, int maxAttempts, long baseBackoffNanos) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseBackoffNanos = baseBackoffNanos;
+        this.requests = new Bucket(requestsPerMinute);
+        this.tokens = new Bucket(tokensPerMinute);
+        this.limit = this.maxConcurrency;
+    }
+
+    /**
+     * Thrown by a request that may succeed if it is sent again later: throttling, a server error or a network
+     * failure.
+     */
+    public static class RetryableException extends RuntimeException {
+        public RetryableException(@NotNull String message, @Nullable Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Sends a request costing the given number of tokens once the limits allow it, retrying it if it fails with a
+     * {@link RetryableException}.
+     *
+     * @throws RetryableException if the last attempt failed that way too
+     */
+    public <T> T call(int tokenCount, @NotNull Supplier<T> request) {
+        for (int attempt = 1; ; attempt++) {
+            long round = acquire(tokenCount);
+            try {
+                var result = request.get();
+                onSuccess();
+                return result;
+            } catch (RetryableException e) {
+                onThrottled(round);
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+            } finally {
+                release();
+            }
+            sleep(backoffNanos(attempt));
+        }
+    }
+
+    /**
+     * Updates the limits from the headers of a response; header returns null for a missing header. Any response
+     * may carry them, so this is called for every one, not only for failures.
+     */
+    public void observe(@NotNull Function<String, String> header) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            requests.observe(now, parseLong(header.apply("x-ratelimit-limit-requests")),
+                             parseLong(header.apply("x-ratelimit-remaining-requests")));
+            tokens.observe(now, parseLong(header.apply("x-ratelimit-limit-tokens")),
+                           parseLong(header.apply("x-ratelimit-remaining-tokens")));
+            long pause = 0;
+            var retryAfter = parseLong(header.apply("retry-after"));
+            if (retryAfter != null) {
+                pause = TimeUnit.SECONDS.toNanos(retryAfter);
+            }
+            if (Long.valueOf(0).equals(parseLong(header.apply("x-ratelimit-remaining-requests")))) {
+                pause = Math.max(pause, parseDuration(header.apply("x-ratelimit-reset-requests")));
+            }
+            if (Long.valueOf(0).equals(parseLong(header.apply("x-ratelimit-remaining-tokens")))) {
+                pause = Math.max(pause, parseDuration(header.apply("x-ratelimit-reset-tokens")));
+            }
+            if (pause > 0) {
+                pausedUntil = Math.max(pausedUntil, now + pause);
+            }
+        }
+    }
+
+    /**
+     * The current concurrency limit.
+     */
+    synchronized int concurrencyLimit() {
+        return (int) limit;
+    }
+
+    private long acquire(int tokenCount) {
+        synchronized (this) {
+            try {
+                while (true) {
+                    if (inFlight >= (int) limit) {
+                        // woken by release()
+                        wait();
+                        continue;
+                    }
+                    long now = System.nanoTime();
+                    requests.refill(now);
+                    tokens.refill(now);
+                    // a request larger than a whole minute's budget is sent once the bucket is full
+                    long wait = Math.max(pausedUntil - now,
+                                         Math.max(requests.nanosUntil(1), tokens.nanosUntil(tokenCount)));
+                    if (wait <= 0) {
+                        requests.take(1);
+                        tokens.take(tokenCount);
+                        inFlight++;
+                        return started++;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    private synchronized void onSuccess() {
+        limit = Math.min(maxConcurrency, limit + 1 / limit);
+    }
+
+    private synchronized void onThrottled(long round) {
+        if (round < lastDecreaseAt) {
+            // sent before the last decrease took effect
+            return;
+        }
+        limit = Math.max(1, limit / 2);
+        lastDecreaseAt = started;
+    }
+
+    private long backoffNanos(int attempt) {
+        long backoff = Math.min(MAX_BACKOFF_NANOS, baseBackoffNanos << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    private static void sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static @Nullable Long parseLong(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a duration such as "6m0s", "1.5s" or "20ms" into nanoseconds; 0 if it is missing or malformed.
+     */
+    static long parseDuration(@Nullable String value) {
+        if (value == null) {
+            return 0;
+        }
+        var matcher = DURATION_PART.matcher(value.trim());
+        double seconds = 0;
+        int end = 0;
+        while (matcher.find() && matcher.start() == end) {
+            double amount = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "h":
+                    seconds += amount * 3600;
+                    break;
+                case "m":
+                    seconds += amount * 60;
+                    break;
+                case "s":
+                    seconds += amount;
+                    break;
+                default:
+                    seconds += amount / 1000;
+                    break;
+            }
+            end = matcher.end();
+        }
+        return end == value.trim().length() ? (long) (seconds * 1e9) : 0;
+    }
+
+    /**
+     * A per-minute budget that refills continuously. Unlimited while its capacity is unknown.
+     */
+    private static class Bucket {
+        private final boolean configured;
+        private long capacity;
+        private double available;
+        private long refilledAt = System.nanoTime();
+
+        Bucket(int perMinute) {
+            this.configured = perMinute > 0;
+            this.capacity = Math.max(0, perMinute);
+            this.available = capacity;
+        }
+
+        void refill(long now) {
+            if (capacity > 0) {
+                available = Math.min(capacity, available + (double) (now - refilledAt) * capacity / MINUTE_NANOS);
+            }
+            refilledAt = now;
+        }
+
+        long nanosUntil(long amount) {
+            if (capacity == 0) {
+                return 0;
+            }
+            double missing = Math.min(amount, capacity) - available;
+            return missing <= 0 ? 0 : (long) Math.ceil(missing * MINUTE_NANOS / capacity);
+        }
+
+        void take(long amount) {
+            if (capacity > 0) {
+                available -= Math.min(amount, capacity);
+            }
+        }
+
+        void observe(long now, @Nullable Long limit, @Nullable Long remaining) {
+            refill(now);
+            if (!configured && limit != null && limit > 0 && limit != capacity) {
+                if (capacity == 0) {
+                    available = limit;
+                }
+                capacity = limit;
+            }
+            if (capacity > 0 && remaining != null && remaining < available) {
+                // the server also counts requests of other clients using the same key
+                available = remaining;
+            }
+        }
+    }
+}
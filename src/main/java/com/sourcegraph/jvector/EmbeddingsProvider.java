@@ -1,5 +1,49 @@
 package com.sourcegraph.jvector;
 
-public interface EmbeddingsProvider {
+import java.util.ArrayList;
+import java.util.List;
+
+public interface EmbeddingsProvider extends AutoCloseable {
     float[] getEmbedding(String body);
+
+    /**
+     * Embeds several chunks, returning one vector per body in the same order.
+     * The default makes one call per chunk; providers whose backend accepts arrays should override it.
+     */
+    default List<float[]> getEmbeddings(List<String> bodies) {
+        var embeddings = new ArrayList<float[]>(bodies.size());
+        for (var body : bodies) {
+            embeddings.add(getEmbedding(body));
+        }
+        return embeddings;
+    }
+
+    /**
+     * Returns the (possibly estimated) number of tokens the provider will charge for the text.
+     */
+    default int countTokens(String text) {
+        return EmbeddingBatches.estimateTokens(text);
+    }
+
+    /**
+     * The longest input, in tokens, the provider embeds without truncating or failing.
+     */
+    default int maxInputTokens() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * The length of the vectors returned by this provider.
+     */
+    int dimension();
+
+    /**
+     * Identifies the model and any settings that change its output, so that cached vectors from
+     * different models are never mixed.
+     */
+    String modelId();
+
+    @Override
+    default void close() {
+    }
 }
@@ -0,0 +1,55 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Change detection digests for indexed files. These only need to tell versions of the same file apart, not resist
+ * deliberate collisions, so a 64-bit digest made of two independent CRCs (CRC32C is hardware-accelerated) replaces
+ * SHA-256. Source files are small, so they are read into a reused per-thread buffer; only files above a few MB
+ * are read through a read-only memory mapping, which also avoids the cost of setting one up per file and, on
+ * Windows, keeps the editor from being blocked while saving a file that is mapped.
+ */
+public class FileDigests {
+    // mapped windows stay well below the 2 GB limit of a single MappedByteBuffer
+    private static final long WINDOW_BYTES = 1L << 30;
+    private static final long MAP_THRESHOLD_BYTES = 4L << 20;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 << 10));
+
+    private FileDigests() {
+    }
+
+    public static byte @NotNull [] digest(@NotNull Path path) throws IOException {
+        var crc32c = new CRC32C();
+        var crc32 = new CRC32();
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= MAP_THRESHOLD_BYTES) {
+                var buffer = BUFFER.get();
+                // read to the end rather than size bytes, in case the file grew since
+                while (channel.read(buffer.clear()) >= 0) {
+                    buffer.flip();
+                    crc32c.update(buffer.duplicate());
+                    crc32.update(buffer);
+                }
+            } else {
+                for (long position = 0; position < size; position += WINDOW_BYTES) {
+                    var window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_BYTES, size - position));
+                    crc32c.update(window.duplicate());
+                    crc32.update(window);
+                }
+            }
+        }
+        return ByteBuffer.allocate(Long.BYTES)
+                .putInt((int) crc32c.getValue())
+                .putInt((int) crc32.getValue())
+                .array();
+    }
+}
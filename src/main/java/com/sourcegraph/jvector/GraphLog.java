@@ -0,0 +1,140 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only write-ahead log of graph mutations made since the last snapshot of a {@link LayeredGraphIndex}.
+ * <p>
+ * Each record is 9 bytes: an operation, the ordinal, and a CRC32C of both. Records are buffered in memory and
+ * reach the disk in group commits ({@link #sync}), so one fsync covers every mutation since the previous one.
+ * A crash can tear the last record; {@link #replay} stops at the first record whose checksum does not match and
+ * truncates the log there. Replaying a record that is already reflected in the snapshot is harmless, so the log
+ * is only truncated ({@link #reset}) after a new snapshot has been durably renamed into place.
+ */
+public class GraphLog implements AutoCloseable {
+    public static final byte ADD = 1;
+    public static final byte DELETE = 2;
+
+    private static final int RECORD_BYTES = 9;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_BYTES * 4096);
+    private boolean unsynced;
+
+    /**
+     * Opens the log at path, creating it if necessary. Call {@link #replay} before appending.
+     */
+    public GraphLog(@NotNull Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Passes every intact record to the given consumers in log order, drops a torn tail, and positions the log
+     * for appending after the last intact record.
+     */
+    public synchronized void replay(@NotNull IntConsumer onAdd, @NotNull IntConsumer onDelete) throws IOException {
+        var in = ByteBuffer.allocate(buffer.capacity());
+        var crc = new CRC32C();
+        long position = 0;
+        outer:
+        while (true) {
+            in.clear();
+            if (channel.read(in, position) <= 0) {
+                break;
+            }
+            in.flip();
+            while (in.remaining() >= RECORD_BYTES) {
+                byte op = in.get();
+                int ordinal = in.getInt();
+                int checksum = in.getInt();
+                crc.reset();
+                crc.update(op);
+                crc.update(ordinal >>> 24);
+                crc.update(ordinal >>> 16);
+                crc.update(ordinal >>> 8);
+                crc.update(ordinal);
+                if ((int) crc.getValue() != checksum || (op != ADD && op != DELETE)) {
+                    break outer;
+                }
+                if (op == ADD) {
+                    onAdd.accept(ordinal);
+                } else {
+                    onDelete.accept(ordinal);
+                }
+                position += RECORD_BYTES;
+            }
+            if (in.remaining() > 0 && channel.size() - position < RECORD_BYTES) {
+                // partial record at the end of the file
+                break;
+            }
+        }
+        channel.truncate(position);
+        channel.position(position);
+    }
+
+    public synchronized void append(byte op, int ordinal) throws IOException {
+        if (buffer.remaining() < RECORD_BYTES) {
+            write();
+        }
+        var crc = new CRC32C();
+        crc.update(op);
+        crc.update(ordinal >>> 24);
+        crc.update(ordinal >>> 16);
+        crc.update(ordinal >>> 8);
+        crc.update(ordinal);
+        buffer.put(op).putInt(ordinal).putInt((int) crc.getValue());
+    }
+
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        unsynced = true;
+    }
+
+    /**
+     * Makes every appended record durable.
+     */
+    public synchronized void sync() throws IOException {
+        if (buffer.position() > 0) {
+            write();
+        }
+        if (unsynced) {
+            channel.force(false);
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Size of the log on disk plus buffered records, in bytes.
+     */
+    public synchronized long size() throws IOException {
+        return channel.size() + buffer.position();
+    }
+
+    /**
+     * Empties the log once a snapshot covers everything in it.
+     */
+    public synchronized void reset() throws IOException {
+        buffer.clear();
+        channel.truncate(0);
+        channel.force(false);
+        unsynced = false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        channel.close();
+    }
+}
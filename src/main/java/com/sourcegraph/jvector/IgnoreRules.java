@@ -0,0 +1,152 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Patterns in .gitignore syntax, matched against '/'-separated paths relative to the directory the patterns
+ * apply to: blank lines and {@code #} comments are skipped, {@code !} re-includes, a trailing {@code /} matches
+ * directories only, a pattern with a {@code /} other than a trailing one is anchored to the directory, and
+ * {@code *}, {@code ?}, {@code [...]} and {@code **} have their usual meaning. As in git, the last matching
+ * pattern decides.
+ */
+class IgnoreRules {
+    static final IgnoreRules EMPTY = new IgnoreRules(List.of());
+
+    private final List<Rule> rules;
+
+    private IgnoreRules(@NotNull List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    static @NotNull IgnoreRules parse(@NotNull String contents) {
+        return parse(contents.split("\r?\n"));
+    }
+
+    static @NotNull IgnoreRules parse(@NotNull String... patterns) {
+        var rules = new ArrayList<Rule>();
+        for (var line : patterns) {
+            var rule = Rule.parse(line);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+        return rules.isEmpty() ? EMPTY : new IgnoreRules(rules);
+    }
+
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * True if ignored, false if re-included by a negated pattern, null if no pattern matches.
+     */
+    @Nullable Boolean match(@NotNull String relativePath, boolean directory) {
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            var rule = rules.get(i);
+            if ((directory || !rule.directoryOnly) && rule.regex.matcher(relativePath).matches()) {
+                return !rule.negated;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * True if the path or one of its parent directories is ignored. Like git, a file in an ignored directory
+     * cannot be re-included.
+     */
+    boolean isIgnored(@NotNull String relativePath, boolean directory) {
+        for (int slash = relativePath.indexOf('/'); slash > 0; slash = relativePath.indexOf('/', slash + 1)) {
+            if (Boolean.TRUE.equals(match(relativePath.substring(0, slash), true))) {
+                return true;
+            }
+        }
+        return Boolean.TRUE.equals(match(relativePath, directory));
+    }
+
+    private static class Rule {
+        final Pattern regex;
+        final boolean negated;
+        final boolean directoryOnly;
+
+        private Rule(@NotNull Pattern regex, boolean negated, boolean directoryOnly) {
+            this.regex = regex;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+        }
+
+        static @Nullable Rule parse(@NotNull String line) {
+            var pattern = line.strip();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                return null;
+            }
+            boolean negated = pattern.startsWith("!");
+            if (negated) {
+                pattern = pattern.substring(1);
+            } else if (pattern.startsWith("\\#") || pattern.startsWith("\\!")) {
+                pattern = pattern.substring(1);
+            }
+            boolean directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            boolean anchored = pattern.contains("/");
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            if (pattern.isEmpty()) {
+                return null;
+            }
+            var regex = (anchored ? "" : "(?:.*/)?") + toRegex(pattern);
+            return new Rule(Pattern.compile(regex), negated, directoryOnly);
+        }
+
+        private static @NotNull String toRegex(@NotNull String glob) {
+            var regex = new StringBuilder();
+            int n = glob.length();
+            for (int i = 0; i < n; i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < n && glob.charAt(i + 1) == '*') {
+                    boolean atStart = i == 0 || glob.charAt(i - 1) == '/';
+                    boolean atEnd = i + 2 == n;
+                    if (atStart && atEnd) {
+                        // "dir/**" matches everything inside dir
+                        regex.append(".*");
+                    } else if (atStart && glob.charAt(i + 2) == '/') {
+                        // "**/" matches zero or more directories
+                        regex.append("(?:.*/)?");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    i++;
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '[') {
+                    int close = glob.indexOf(']', i + 2);
+                    if (close < 0) {
+                        regex.append("\\[");
+                        continue;
+                    }
+                    var set = glob.substring(i + 1, close);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = close;
+                } else if (c == '\\' && i + 1 < n) {
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return regex.toString();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * A prebuilt index packed into one portable file, so that an index built once (e.g. by a CI job) can be imported
+ * by everyone working on the same repository instead of each of them embedding it again.
+ * <p>
+ * The file is a magic number and format version, a header naming the embeddings model, vector dimension and
+ * revision the index was built from, then named sections each prefixed by its length, and finally a CRC32C of
+ * everything before it. Readers reject other format versions outright rather than guess at them.
+ * <p>
+ * Reading maps the file in windows of at most 1 GB, verifies the checksum over the mapping, and serves sections
+ * straight out of it.
+ */
+class IndexBundle implements AutoCloseable {
+    private static final int MAGIC = 0x636c6978; // "clix"
+    // 2: the graph section holds a MappedGraph, without vectors
+    static final int FORMAT_VERSION = 2;
+    private static final long WINDOW_BYTES = 1L << 30;
+
+    final String modelId;
+    final int dimension;
+    final String revision;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] windows;
+    // section name to {offset, length}
+    private final Map<String, long[]> sections;
+
+    private IndexBundle(@NotNull String modelId,
+                        int dimension,
+                        @NotNull String revision,
+                        @NotNull FileChannel channel,
+                        @NotNull MappedByteBuffer[] windows,
+                        @NotNull Map<String, long[]> sections)
+    {
+        this.modelId = modelId;
+        this.dimension = dimension;
+        this.revision = revision;
+        this.channel = channel;
+        this.windows = windows;
+        this.sections = sections;
+    }
+
+    interface SectionWriter {
+        void write(@NotNull DataOutputStream out) throws IOException;
+    }
+
+    static class Section {
+        final String name;
+        final SectionWriter writer;
+
+        Section(@NotNull String name, @NotNull SectionWriter writer) {
+            this.name = name;
+            this.writer = writer;
+        }
+    }
+
+    /**
+     * Writes a bundle via a temp file that is renamed over path once it is complete.
+     */
+    static void write(@NotNull Path path,
+                      @NotNull String modelId,
+                      int dimension,
+                      @NotNull String revision,
+                      @NotNull List<Section> sections) throws IOException
+    {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(modelId);
+            out.writeInt(dimension);
+            out.writeUTF(revision);
+            out.writeInt(sections.size());
+            for (var section : sections) {
+                out.writeUTF(section.name);
+                out.flush();
+                // the length is patched in once the section is written
+                long lengthPosition = channel.position();
+                out.writeLong(0);
+                section.writer.write(out);
+                out.flush();
+                long length = channel.position() - lengthPosition - Long.BYTES;
+                channel.write(ByteBuffer.allocate(Long.BYTES).putLong(0, length), lengthPosition);
+            }
+            out.flush();
+            long size = channel.position();
+            // read back rather than mapped, so that no mapping keeps the temp file from being renamed on Windows
+            var crc = new CRC32C();
+            var buffer = ByteBuffer.allocate(1 << 20);
+            for (long position = 0; position < size; ) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), size - position));
+                int n = channel.read(buffer, position);
+                buffer.flip();
+                crc.update(buffer);
+                position += n;
+            }
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, (int) crc.getValue()), size);
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a bundle and verifies it.
+     *
+     * @throws IOException if the file is not a bundle, was written in another format version, or is corrupt
+     */
+    static @NotNull IndexBundle open(@NotNull Path path) throws IOException {
+        var channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size() - Integer.BYTES;
+            if (size < 2 * Integer.BYTES) {
+                throw new IOException(path + " is not an index bundle");
+            }
+            var windows = map(channel, size);
+            var raw = new MappedInputStream(windows, 0, size);
+            var in = new DataInputStream(raw);
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not an index bundle");
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException(String.format("%s has format version %d, expected %d", path, version, FORMAT_VERSION));
+            }
+            var stored = ByteBuffer.allocate(Integer.BYTES);
+            channel.read(stored, size);
+            if (stored.getInt(0) != checksum(windows)) {
+                throw new IOException(path + " is corrupt: checksum mismatch");
+            }
+
+            var modelId = in.readUTF();
+            int dimension = in.readInt();
+            var revision = in.readUTF();
+            int count = in.readInt();
+            var sections = new LinkedHashMap<String, long[]>();
+            for (int i = 0; i < count; i++) {
+                var name = in.readUTF();
+                long length = in.readLong();
+                // DataInputStream does not buffer, so this is where the section starts
+                long offset = raw.position;
+                if (length < 0 || offset + length > size) {
+                    throw new IOException(path + " is corrupt: section " + name + " is truncated");
+                }
+                sections.put(name, new long[] {offset, length});
+                raw.position = offset + length;
+            }
+            return new IndexBundle(modelId, dimension, revision, channel, windows, sections);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    boolean hasSection(@NotNull String name) {
+        return sections.containsKey(name);
+    }
+
+    /**
+     * Streams a section out of the mapping.
+     */
+    @NotNull DataInputStream read(@NotNull String name) throws IOException {
+        var section = section(name);
+        return new DataInputStream(new MappedInputStream(windows, section[0], section[1]));
+    }
+
+    /**
+     * Writes a section to its own file.
+     */
+    void copy(@NotNull String name, @NotNull Path target) throws IOException {
+        var section = section(name);
+        try (var out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = section[0];
+            long end = section[0] + section[1];
+            while (position < end) {
+                var window = windows[(int) (position / WINDOW_BYTES)];
+                int inWindow = (int) (position % WINDOW_BYTES);
+                int n = (int) Math.min(end - position, window.limit() - inWindow);
+                var slice = window.duplicate().position(inWindow).limit(inWindow + n);
+                while (slice.hasRemaining()) {
+                    out.write(slice);
+                }
+                position += n;
+            }
+            out.force(true);
+        }
+    }
+
+    private long @NotNull [] section(@NotNull String name) throws IOException {
+        var section = sections.get(name);
+        if (section == null) {
+            throw new IOException("Index bundle has no section " + name);
+        }
+        return section;
+    }
+
+    /**
+     * Copies the first length bytes of a file into a section.
+     */
+    static void copyPrefix(@NotNull Path file, long length, @NotNull DataOutputStream out) throws IOException {
+        try (var in = Files.newInputStream(file)) {
+            var buffer = new byte[1 << 16];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new IOException(String.format("%s is shorter than %d bytes", file, length));
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    /**
+     * Writes a string that may be longer than writeUTF allows.
+     */
+    static void writeString(@NotNull DataOutputStream out, @NotNull String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static @NotNull String readString(@NotNull DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    static void writeBytes(@NotNull DataOutputStream out, byte @Nullable [] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte @Nullable [] readBytes(@NotNull DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static @NotNull MappedByteBuffer[] map(@NotNull FileChannel channel, long size) throws IOException {
+        var windows = new MappedByteBuffer[(int) ((size + WINDOW_BYTES - 1) / WINDOW_BYTES)];
+        for (int i = 0; i < windows.length; i++) {
+            long position = i * WINDOW_BYTES;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_BYTES, size - position));
+        }
+        return windows;
+    }
+
+    private static int checksum(@NotNull MappedByteBuffer[] windows) {
+        var crc = new CRC32C();
+        for (var window : windows) {
+            crc.update(window.duplicate());
+        }
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads a range of the mapped windows.
+     */
+    private static class MappedInputStream extends InputStream {
+        private final MappedByteBuffer[] windows;
+        private final long end;
+        long position;
+
+        MappedInputStream(@NotNull MappedByteBuffer[] windows, long offset, long length) {
+            this.windows = windows;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() {
+            if (position >= end) {
+                return -1;
+            }
+            var window = windows[(int) (position / WINDOW_BYTES)];
+            int b = window.get((int) (position % WINDOW_BYTES)) & 0xff;
+            position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte @NotNull [] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            var window = windows[(int) (position / WINDOW_BYTES)];
+            int inWindow = (int) (position % WINDOW_BYTES);
+            int n = (int) Math.min(len, Math.min(end - position, window.limit() - inWindow));
+            window.duplicate().position(inWindow).get(b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
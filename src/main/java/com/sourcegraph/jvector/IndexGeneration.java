@@ -0,0 +1,588 @@
+package com.sourcegraph.jvector;
+
+import com.intellij.openapi.diagnostic.Logger;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.mapdb.Atomic;
+import org.mapdb.DB;
+import org.mapdb.Serializer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
+
+/**
+ * One numbering of the index's ordinals: the vector store, the graph over it, the PQ codes and the MapDB maps
+ * keyed by ordinal. Compaction writes a new generation with live ordinals renumbered densely and switches to it
+ * by committing the new generation number together with the remapped ordinalsByFile; everything keyed by path
+ * is shared between generations.
+ * <p>
+ * Generation 0 lives directly in the cache directory, where indexes were written before compaction existed.
+ * Generation n lives in {@code gen-n} and its maps carry an {@code @n} suffix.
+ * <p>
+ * Searches pin the generation they read from, so that ordinals in their results resolve against the same maps.
+ * Writers need no pin: they hold the listener's write lock, under which the current generation never changes.
+ */
+class IndexGeneration implements AutoCloseable {
+    private static final Logger log = Logger.getInstance(IndexGeneration.class);
+    private static final String DIRECTORY_PREFIX = "gen-";
+    private static final List<String> MAP_NAMES = List.of("chunksByOrdinal", "filesByOrdinal", "chunkHashesByOrdinal",
+                                                          "parkedOrdinalsByFile", "parkedBranchByOrdinal",
+                                                          "chunkRangesByOrdinal", "compressedChunksByOrdinal",
+                                                          "summariesVersion");
+    // what a generation writes to its directory, plus the temp files of interrupted writes
+    private static final List<String> FILE_NAMES = List.of("vectors.bin", "pq.bin", "jvector.db", "graph.bin",
+                                                           "live.bin", "graph.log", "summaries.bin");
+
+    final int number;
+    final Path directory;
+    final MappedVectorStore vectors;
+    final LayeredGraphIndex graph;
+    final Path quantizedPath;
+    volatile QuantizedVectors quantized;
+    // chunk text as written by indexes before chunk ranges were stored; read, moved and removed, never added to
+    final Map<Integer, String> chunksByOrdinal;
+    final Map<Integer, String> filesByOrdinal;
+    final Map<Integer, byte[]> chunkHashesByOrdinal;
+    // where each chunk's text lies in its file, see Chunk#range
+    final Map<Integer, Long> chunkRangesByOrdinal;
+    // the text of chunks whose range is unknown, e.g. imported ones, see Chunk#compress
+    final Map<Integer, byte[]> compressedChunksByOrdinal;
+    // chunks of file versions that are not checked out, kept for when they are again; see BranchOverlays
+    final Map<String, int[]> parkedOrdinalsByFile;
+    // the branch each parked chunk was last checked out on
+    final Map<Integer, String> parkedBranchByOrdinal;
+    final ParkedChunks parked;
+    // in memory only, rebuilt from filesByOrdinal on open; parked chunks are left out
+    final OrdinalFilters filters = new OrdinalFilters();
+    // saved with the graph, rebuilt from the vectors if the graph changed after the last save
+    final SummaryVectors summaries;
+    // counts changes to the summaries, committed with the maps they follow, so that summaries saved after the
+    // last commit are not taken for the committed ones; parking, unparking and renaming leave the graph stamps as
+    // they were
+    private final Atomic.Long summariesVersion;
+    // one held by the listener while this is the current generation, plus one per search in progress
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private IndexGeneration(int number,
+                            @NotNull Path directory,
+                            @NotNull MappedVectorStore vectors,
+                            @NotNull LayeredGraphIndex graph,
+                            @NotNull DB db)
+    {
+        this.number = number;
+        this.directory = directory;
+        this.vectors = vectors;
+        this.graph = graph;
+        this.quantizedPath = directory.resolve("pq.bin");
+        this.summaries = new SummaryVectors(vectors.dimension());
+        this.chunksByOrdinal = db.hashMap(mapName("chunksByOrdinal", number), Serializer.INTEGER, Serializer.STRING).createOrOpen();
+        this.filesByOrdinal = db.hashMap(mapName("filesByOrdinal", number), Serializer.INTEGER, Serializer.STRING).createOrOpen();
+        this.chunkHashesByOrdinal = db.hashMap(mapName("chunkHashesByOrdinal", number), Serializer.INTEGER, Serializer.BYTE_ARRAY).createOrOpen();
+        this.parkedOrdinalsByFile = db.hashMap(mapName("parkedOrdinalsByFile", number), Serializer.STRING, Serializer.INT_ARRAY).createOrOpen();
+        this.parkedBranchByOrdinal = db.hashMap(mapName("parkedBranchByOrdinal", number), Serializer.INTEGER, Serializer.STRING).createOrOpen();
+        this.chunkRangesByOrdinal = db.hashMap(mapName("chunkRangesByOrdinal", number), Serializer.INTEGER, Serializer.LONG).createOrOpen();
+        this.compressedChunksByOrdinal = db.hashMap(mapName("compressedChunksByOrdinal", number), Serializer.INTEGER, Serializer.BYTE_ARRAY).createOrOpen();
+        this.summariesVersion = db.atomicLong(mapName("summariesVersion", number)).createOrOpen();
+        this.parked = new ParkedChunks(parkedOrdinalsByFile, parkedBranchByOrdinal);
+    }
+
+    /**
+     * Opens an existing generation, or creates an empty one. Older indexes take their live ordinals from
+     * ordinalsByFile.
+     */
+    static @NotNull IndexGeneration open(@NotNull DB db,
+                                         @NotNull Path cachePath,
+                                         int number,
+                                         int dimension,
+                                         @NotNull VectorSimilarityFunction similarity,
+                                         @NotNull Map<String, int[]> ordinalsByFile) throws IOException
+    {
+        var directory = directory(cachePath, number);
+        Files.createDirectories(directory);
+        var vectors = new MappedVectorStore(directory.resolve("vectors.bin"), dimension);
+        try {
+            var graph = new LayeredGraphIndex(vectors, similarity, directory, ordinalsByFile.values());
+            var generation = new IndexGeneration(number, directory, vectors, graph, db);
+            if (generation.filesByOrdinal.isEmpty()) {
+                // indexes written before the reverse map existed
+                for (var entry : ordinalsByFile.entrySet()) {
+                    for (var ordinal : entry.getValue()) {
+                        generation.filesByOrdinal.put(ordinal, entry.getKey());
+                    }
+                }
+            }
+            generation.hideParked();
+            generation.addFilters(generation.filesByOrdinal);
+            if (!generation.summaries.read(generation.summariesPath(), vectors.size(), graph.logSize(),
+                                           generation.summariesVersion.get())) {
+                generation.buildSummaries();
+            }
+            return generation;
+        } catch (IOException | RuntimeException e) {
+            vectors.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the next generation, holding only the ordinals listed in ordinalsByFile and the parked ones, and
+     * rewrites ordinalsByFile to the new numbering. Ordinals that are live in the graph but belong to no file are
+     * dropped with the deleted ones. The MapDB changes are left uncommitted: the caller commits them together with
+     * the new generation number, or rolls them back if this throws.
+     * <p>
+     * cancelled is polled while the files are copied and the graph is rebuilt; once it returns true this deletes
+     * what it wrote and throws a CancellationException.
+     */
+    @NotNull IndexGeneration compact(@NotNull DB db,
+                                     @NotNull Path cachePath,
+                                     @NotNull VectorSimilarityFunction similarity,
+                                     @NotNull Map<String, int[]> ordinalsByFile,
+                                     @NotNull BooleanSupplier cancelled) throws IOException
+    {
+        int next = number + 1;
+        var nextDirectory = directory(cachePath, next);
+        // left over from a compaction that failed before it was committed
+        deleteFiles(nextDirectory, next);
+        clearMaps(db, next);
+        Files.createDirectories(nextDirectory);
+
+        var nextVectors = new MappedVectorStore(nextDirectory.resolve("vectors.bin"), vectors.dimension());
+        LayeredGraphIndex nextGraph = null;
+        try {
+            var nextRanges = db.hashMap(mapName("chunkRangesByOrdinal", next), Serializer.INTEGER, Serializer.LONG).createOrOpen();
+            var nextCompressed = db.hashMap(mapName("compressedChunksByOrdinal", next), Serializer.INTEGER, Serializer.BYTE_ARRAY).createOrOpen();
+            var nextFiles = db.hashMap(mapName("filesByOrdinal", next), Serializer.INTEGER, Serializer.STRING).createOrOpen();
+            var nextChunkHashes = db.hashMap(mapName("chunkHashesByOrdinal", next), Serializer.INTEGER, Serializer.BYTE_ARRAY).createOrOpen();
+            var nextParked = db.hashMap(mapName("parkedOrdinalsByFile", next), Serializer.STRING, Serializer.INT_ARRAY).createOrOpen();
+            var nextParkedBranches = db.hashMap(mapName("parkedBranchByOrdinal", next), Serializer.INTEGER, Serializer.STRING).createOrOpen();
+
+            // files are copied one after another, so each file's chunks stay adjacent in the new store
+            var oldOrdinals = new int[Math.max(16, vectors.size())];
+            var remapped = new HashMap<String, int[]>();
+            var remappedParked = new HashMap<String, int[]>();
+            for (var pass = 0; pass < 2; pass++) {
+                var source = pass == 0 ? ordinalsByFile : parkedOrdinalsByFile;
+                var target = pass == 0 ? remapped : remappedParked;
+                for (var entry : source.entrySet()) {
+                    if (cancelled.getAsBoolean()) {
+                        throw new CancellationException("Compaction cancelled");
+                    }
+                    var ordinals = entry.getValue();
+                    var renumbered = new int[ordinals.length];
+                    int count = 0;
+                    for (var ordinal : ordinals) {
+                        if (ordinal >= vectors.size()) {
+                            // its vector did not reach the disk before a crash
+                            continue;
+                        }
+                        int renumberedOrdinal = nextVectors.append(vectors.vectorValue(ordinal));
+                        if (renumberedOrdinal >= oldOrdinals.length) {
+                            oldOrdinals = Arrays.copyOf(oldOrdinals, oldOrdinals.length * 2);
+                        }
+                        oldOrdinals[renumberedOrdinal] = ordinal;
+                        renumbered[count++] = renumberedOrdinal;
+                        var range = chunkRangesByOrdinal.get(ordinal);
+                        if (range != null) {
+                            nextRanges.put(renumberedOrdinal, range);
+                        }
+                        var compressed = compressedChunksByOrdinal.get(ordinal);
+                        var body = chunksByOrdinal.get(ordinal);
+                        if (compressed == null && body != null && range == null) {
+                            // the text of an older index is compressed on the way
+                            compressed = Chunk.compress(body);
+                        }
+                        if (compressed != null) {
+                            nextCompressed.put(renumberedOrdinal, compressed);
+                        }
+                        nextFiles.put(renumberedOrdinal, entry.getKey());
+                        var chunkHash = chunkHashesByOrdinal.get(ordinal);
+                        if (chunkHash != null) {
+                            nextChunkHashes.put(renumberedOrdinal, chunkHash);
+                        }
+                        var branch = parkedBranchByOrdinal.get(ordinal);
+                        if (pass == 1 && branch != null) {
+                            nextParkedBranches.put(renumberedOrdinal, branch);
+                        }
+                    }
+                    target.put(entry.getKey(), count == renumbered.length ? renumbered : Arrays.copyOf(renumbered, count));
+                }
+            }
+            nextParked.putAll(remappedParked);
+
+            nextGraph = LayeredGraphIndex.build(nextVectors, similarity, nextDirectory, cancelled);
+            var generation = new IndexGeneration(next, nextDirectory, nextVectors, nextGraph, db);
+            generation.hideParked();
+            generation.addFilters(nextFiles);
+            generation.buildSummaries();
+            var pq = quantized;
+            if (pq != null) {
+                // the codebooks still fit the data, so only the codes move
+                var nextPq = pq.remap(nextVectors, Arrays.copyOf(oldOrdinals, nextVectors.size()));
+                nextPq.save(generation.quantizedPath);
+                generation.quantized = nextPq;
+            }
+            ordinalsByFile.putAll(remapped);
+            log.info(String.format("Compacted generation %d (%d ordinals) into %d (%d ordinals)",
+                                   number, vectors.size(), next, nextVectors.size()));
+            return generation;
+        } catch (IOException | RuntimeException e) {
+            if (nextGraph != null) {
+                nextGraph.close();
+            }
+            nextVectors.close();
+            deleteFiles(nextDirectory, next);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the vectors, the graph and the chunks of the files under root to a bundle, with paths relative to
+     * root. The graph must have just been merged, so that its base layer covers every ordinal and the log is
+     * empty. Only ordinals listed in ordinalsByFile are written to the file list, so parked and deleted ones are
+     * not live once imported. Bundles carry chunk text rather than ranges, since the files they were taken from
+     * may differ from the importer's; chunkText resolves it.
+     */
+    void export(@NotNull Path bundle,
+                @NotNull String modelId,
+                @NotNull String revision,
+                @NotNull String root,
+                @NotNull Map<String, int[]> ordinalsByFile,
+                @NotNull Map<String, byte[]> fileContentHashes,
+                @NotNull IntFunction<String> chunkText) throws IOException
+    {
+        var prefix = root + "/";
+        IndexBundle.write(bundle, modelId, vectors.dimension(), revision, List.of(
+                new IndexBundle.Section("vectors.bin", out -> IndexBundle.copyPrefix(vectors.getPath(), vectors.byteSize(), out)),
+                new IndexBundle.Section("graph.bin", out -> Files.copy(directory.resolve("graph.bin"), out)),
+                new IndexBundle.Section("files", out -> {
+                    for (var entry : ordinalsByFile.entrySet()) {
+                        var path = entry.getKey();
+                        if (!path.startsWith(prefix)) {
+                            continue;
+                        }
+                        var ordinals = new ArrayList<Integer>();
+                        var bodies = new ArrayList<String>();
+                        for (var ordinal : entry.getValue()) {
+                            // a vector that did not reach the disk before a crash, or a chunk with no text
+                            var body = ordinal < vectors.size() ? chunkText.apply(ordinal) : null;
+                            if (body != null) {
+                                ordinals.add(ordinal);
+                                bodies.add(body);
+                            }
+                        }
+                        out.writeBoolean(true);
+                        IndexBundle.writeString(out, path.substring(prefix.length()));
+                        IndexBundle.writeBytes(out, fileContentHashes.get(path));
+                        out.writeInt(ordinals.size());
+                        for (int i = 0; i < ordinals.size(); i++) {
+                            out.writeInt(ordinals.get(i));
+                            IndexBundle.writeString(out, bodies.get(i));
+                            IndexBundle.writeBytes(out, chunkHashesByOrdinal.get(ordinals.get(i)));
+                        }
+                    }
+                    out.writeBoolean(false);
+                })));
+    }
+
+    /**
+     * Creates generation number from a bundle, and records the bundle's files, resolved against root, in
+     * ordinalsByFile and fileContentHashes, which the caller has emptied. As with {@link #compact}, the MapDB
+     * changes are left uncommitted. Chunk text is stored compressed until the file is next indexed, which records
+     * ranges instead.
+     */
+    static @NotNull IndexGeneration importBundle(@NotNull DB db,
+                                                 @NotNull Path cachePath,
+                                                 int number,
+                                                 @NotNull IndexBundle bundle,
+                                                 @NotNull VectorSimilarityFunction similarity,
+                                                 @NotNull String root,
+                                                 @NotNull Map<String, int[]> ordinalsByFile,
+                                                 @NotNull Map<String, byte[]> fileContentHashes) throws IOException
+    {
+        var directory = directory(cachePath, number);
+        deleteFiles(directory, number);
+        Files.createDirectories(directory);
+        try {
+            for (var name : List.of("vectors.bin", "graph.bin")) {
+                bundle.copy(name, directory.resolve(name));
+            }
+            var chunks = db.hashMap(mapName("compressedChunksByOrdinal", number), Serializer.INTEGER, Serializer.BYTE_ARRAY).createOrOpen();
+            var files = db.hashMap(mapName("filesByOrdinal", number), Serializer.INTEGER, Serializer.STRING).createOrOpen();
+            var chunkHashes = db.hashMap(mapName("chunkHashesByOrdinal", number), Serializer.INTEGER, Serializer.BYTE_ARRAY).createOrOpen();
+            try (var in = bundle.read("files")) {
+                while (in.readBoolean()) {
+                    var path = root + "/" + IndexBundle.readString(in);
+                    var hash = IndexBundle.readBytes(in);
+                    var ordinals = new int[in.readInt()];
+                    for (int i = 0; i < ordinals.length; i++) {
+                        int ordinal = in.readInt();
+                        ordinals[i] = ordinal;
+                        chunks.put(ordinal, Chunk.compress(IndexBundle.readString(in)));
+                        files.put(ordinal, path);
+                        var chunkHash = IndexBundle.readBytes(in);
+                        if (chunkHash != null) {
+                            chunkHashes.put(ordinal, chunkHash);
+                        }
+                    }
+                    ordinalsByFile.put(path, ordinals);
+                    if (hash != null) {
+                        fileContentHashes.put(path, hash);
+                    }
+                }
+            }
+            // the bundle has no live bitset: like an index written before live.bin existed, the graph takes its
+            // live ordinals from ordinalsByFile
+            return open(db, cachePath, number, bundle.dimension, similarity, ordinalsByFile);
+        } catch (IOException | RuntimeException e) {
+            deleteFiles(directory, number);
+            throw e;
+        }
+    }
+
+    /**
+     * The chunk's text if the index stores it, compressed or as written by an older index; null if only its range
+     * is stored.
+     */
+    @Nullable String storedText(int ordinal) {
+        var compressed = compressedChunksByOrdinal.get(ordinal);
+        if (compressed != null) {
+            return Chunk.decompress(compressed);
+        }
+        return chunksByOrdinal.get(ordinal);
+    }
+
+    /**
+     * Records where the chunk's text now lies in its file, replacing any stored text.
+     */
+    void setRange(int ordinal, long range) {
+        var previous = chunkRangesByOrdinal.put(ordinal, range);
+        if (previous == null) {
+            compressedChunksByOrdinal.remove(ordinal);
+            chunksByOrdinal.remove(ordinal);
+        }
+    }
+
+    /**
+     * Removes the chunk's range and stored text.
+     */
+    void removeText(int ordinal) {
+        chunkRangesByOrdinal.remove(ordinal);
+        compressedChunksByOrdinal.remove(ordinal);
+        chunksByOrdinal.remove(ordinal);
+    }
+
+    /**
+     * Sums the vectors of every chunk into the summaries, reading the whole vector store once, and saves them.
+     * Parked chunks are left out, so call after they are hidden.
+     */
+    private void buildSummaries() throws IOException {
+        for (var entry : filesByOrdinal.entrySet()) {
+            int ordinal = entry.getKey();
+            if (ordinal < vectors.size() && graph.isVisible(ordinal)) {
+                summaries.add(entry.getValue(), ordinal, vectors.vectorValue(ordinal));
+            }
+        }
+        saveSummaries();
+        log.info(String.format("Summarized generation %d into %d packages", number, summaries.packageCount()));
+    }
+
+    /**
+     * Adds a searchable chunk to the summaries.
+     */
+    void addSummary(@NotNull String path, int ordinal, float @NotNull [] vector) {
+        summaries.add(path, ordinal, vector);
+        summariesVersion.incrementAndGet();
+    }
+
+    /**
+     * Removes a chunk from the summaries, when it is deleted, parked or moved to another file.
+     */
+    void removeSummary(@NotNull String path, int ordinal, float @NotNull [] vector) {
+        summaries.remove(path, ordinal, vector);
+        summariesVersion.incrementAndGet();
+    }
+
+    /**
+     * Saves the summaries, stamped with the state of the graph and their version: call right after the graph is
+     * synced or merged, before the commit.
+     */
+    void saveSummaries() throws IOException {
+        summaries.write(summariesPath(), vectors.size(), graph.logSize(), summariesVersion.get());
+    }
+
+    private @NotNull Path summariesPath() {
+        return directory.resolve("summaries.bin");
+    }
+
+    /**
+     * Adds the searchable chunks of files to the filters. Parked chunks are left out, so call after they are
+     * hidden.
+     */
+    private void addFilters(@NotNull Map<Integer, String> files) {
+        for (var entry : files.entrySet()) {
+            if (graph.isVisible(entry.getKey())) {
+                filters.add(entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Parked ordinals stay in the graph, hidden from results; the graph does not remember which they are.
+     */
+    private void hideParked() {
+        for (var ordinals : parkedOrdinalsByFile.values()) {
+            for (var ordinal : ordinals) {
+                graph.hide(ordinal);
+            }
+        }
+    }
+
+    /**
+     * Pins the generation for a search. Fails once the generation has been retired and every search that pinned
+     * it has finished.
+     */
+    boolean tryPin() {
+        while (true) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void unpin() {
+        references.decrementAndGet();
+    }
+
+    /**
+     * True once the listener has let go of a replaced generation and no search is using it, so it can be closed.
+     */
+    boolean isUnpinned() {
+        return references.get() == 0;
+    }
+
+    /**
+     * Removes every generation other than current, both files and map entries: the ones a compaction replaced
+     * and the ones a failed or interrupted compaction left behind.
+     */
+    static void deleteOthers(@NotNull DB db, @NotNull Path cachePath, int current) throws IOException {
+        var stale = new ArrayList<Integer>();
+        if (current != 0) {
+            stale.add(0);
+        }
+        try (var entries = Files.list(cachePath)) {
+            for (var entry : entries.collect(Collectors.toList())) {
+                var name = entry.getFileName().toString();
+                var number = parseNumber(name, DIRECTORY_PREFIX);
+                if (number != null && number != current && !stale.contains(number)) {
+                    stale.add(number);
+                }
+            }
+        }
+        for (var name : db.getAllNames()) {
+            for (var mapName : MAP_NAMES) {
+                var number = parseNumber(name, mapName + "@");
+                if (number != null && number != current && !stale.contains(number)) {
+                    stale.add(number);
+                }
+            }
+        }
+        for (var number : stale) {
+            deleteFiles(directory(cachePath, number), number);
+            clearMaps(db, number);
+        }
+    }
+
+    private static @Nullable Integer parseNumber(@NotNull String name, @NotNull String prefix) {
+        if (!name.startsWith(prefix)) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static @NotNull Path directory(@NotNull Path cachePath, int number) {
+        return number == 0 ? cachePath : cachePath.resolve(DIRECTORY_PREFIX + number);
+    }
+
+    private static @NotNull String mapName(@NotNull String name, int number) {
+        return number == 0 ? name : name + "@" + number;
+    }
+
+    /**
+     * Empties the ordinal-keyed maps of a generation. MapDB cannot drop a named collection, but an empty one
+     * costs next to nothing.
+     */
+    static void clearMaps(@NotNull DB db, int number) {
+        db.hashMap(mapName("chunksByOrdinal", number), Serializer.INTEGER, Serializer.STRING).createOrOpen().clear();
+        db.hashMap(mapName("filesByOrdinal", number), Serializer.INTEGER, Serializer.STRING).createOrOpen().clear();
+        db.hashMap(mapName("chunkHashesByOrdinal", number), Serializer.INTEGER, Serializer.BYTE_ARRAY).createOrOpen().clear();
+        db.hashMap(mapName("parkedOrdinalsByFile", number), Serializer.STRING, Serializer.INT_ARRAY).createOrOpen().clear();
+        db.hashMap(mapName("parkedBranchByOrdinal", number), Serializer.INTEGER, Serializer.STRING).createOrOpen().clear();
+        db.hashMap(mapName("chunkRangesByOrdinal", number), Serializer.INTEGER, Serializer.LONG).createOrOpen().clear();
+        db.hashMap(mapName("compressedChunksByOrdinal", number), Serializer.INTEGER, Serializer.BYTE_ARRAY).createOrOpen().clear();
+        db.atomicLong(mapName("summariesVersion", number)).createOrOpen().set(0);
+    }
+
+    /**
+     * Deletes a generation's files. Generation 0 shares the cache directory with MapDB, so only its own files
+     * are removed there.
+     */
+    private static void deleteFiles(@NotNull Path directory, int number) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        if (number == 0) {
+            for (var name : FILE_NAMES) {
+                Files.deleteIfExists(directory.resolve(name));
+                Files.deleteIfExists(directory.resolve(name + ".tmp"));
+            }
+            return;
+        }
+        try (var entries = Files.walk(directory)) {
+            for (var path : entries.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Deletes this generation's files and empties its maps; the caller commits. Must only be called once no
+     * search can still be using the generation, and after {@link #close}.
+     */
+    void delete() throws IOException {
+        deleteFiles(directory, number);
+        chunksByOrdinal.clear();
+        filesByOrdinal.clear();
+        chunkHashesByOrdinal.clear();
+        parkedOrdinalsByFile.clear();
+        parkedBranchByOrdinal.clear();
+        chunkRangesByOrdinal.clear();
+        compressedChunksByOrdinal.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        graph.close();
+        vectors.close();
+    }
+}
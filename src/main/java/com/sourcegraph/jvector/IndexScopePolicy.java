@@ -0,0 +1,283 @@
+package com.sourcegraph.jvector;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.GeneratedSourcesFilter;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * Decides which files are indexed. Checks run in order of cost, and each rejected file is counted against the
+ * rule that rejected it, with the bytes and estimated tokens it would have cost:
+ * <ol>
+ * <li>"extension": the extension is not in {@link JVectorConfig#getIndexedExtensions()};</li>
+ * <li>"excluded": the IDE excludes or ignores it, e.g. an excluded root or output directory;</li>
+ * <li>"gitignore": the repository's .git/info/exclude, or a .gitignore between the repository root and the file,
+ * ignores it; outside a repository, a .gitignore between the content root and the file does;</li>
+ * <li>"glob": it matches {@link JVectorConfig#getIndexExcludePatterns()};</li>
+ * <li>"generated": a {@link GeneratedSourcesFilter} claims it, or its first lines carry a generated-code marker;</li>
+ * <li>"size": it is larger than {@link JVectorConfig#getIndexMaxFileBytes()};</li>
+ * <li>"chunks": it chunks into more than {@link JVectorConfig#getIndexMaxChunksPerFile()} chunks.</li>
+ * </ol>
+ * The first five need no file contents, so directories are checked on the way down and the scan never enters an
+ * excluded, ignored or matching directory. Only the marker check reads the file, and only its first kilobyte.
+ * Until a file is read its tokens are estimated at four bytes each.
+ * <p>
+ * The user's global excludes file (core.excludesFile) is not read, and neither is info/exclude of a linked
+ * worktree, whose .git is a file.
+ */
+class IndexScopePolicy {
+    private static final Logger log = Logger.getInstance(IndexScopePolicy.class);
+    private static final int HEAD_BYTES = 1024;
+    private static final String INFO_EXCLUDE = ".git/info/exclude";
+    private static final List<String> GENERATED_MARKERS = List.of("@generated", "DO NOT EDIT", "<auto-generated",
+                                                                  "Generated by the protocol buffer compiler");
+
+    private final Project project;
+    private final Set<String> extensions = JVectorConfig.getIndexedExtensions();
+    private final IgnoreRules excludePatterns = IgnoreRules.parse(JVectorConfig.getIndexExcludePatterns().toArray(new String[0]));
+    private final long maxFileBytes = JVectorConfig.getIndexMaxFileBytes();
+    private final int maxChunks = JVectorConfig.getIndexMaxChunksPerFile();
+    // parsed .gitignore files by the path of their directory, and info/exclude files by their own path;
+    // IgnoreRules.EMPTY where there is none
+    private final Map<String, IgnoreRules> gitignores = new ConcurrentHashMap<>();
+    private final Map<String, RuleStats> stats = new LinkedHashMap<>();
+
+    IndexScopePolicy(@NotNull Project project) {
+        this.project = project;
+        for (var rule : List.of("extension", "excluded", "gitignore", "glob", "generated", "size", "chunks")) {
+            stats.put(rule, new RuleStats());
+        }
+    }
+
+    /**
+     * For the scan: false for a directory whose contents are all out of scope. Its parents have been accepted.
+     */
+    boolean acceptsDirectory(@NotNull VirtualFile directory) {
+        return reject(directory, true) == null;
+    }
+
+    /**
+     * For the scan: the checks that need no file contents. The file's parents have been accepted.
+     */
+    boolean accepts(@NotNull VirtualFile file) {
+        return !file.isDirectory() && reject(file, false) == null;
+    }
+
+    /**
+     * For a single changed file: {@link #accepts}, plus the directory checks for each of its parents up to its
+     * content root.
+     */
+    boolean acceptsChanged(@NotNull VirtualFile file) {
+        if (!accepts(file)) {
+            return false;
+        }
+        var root = ReadAction.compute(() -> ProjectFileIndex.getInstance(project).getContentRootForFile(file));
+        if (root == null) {
+            return true;
+        }
+        for (var parent = file.getParent(); parent != null && !parent.equals(root); parent = parent.getParent()) {
+            var rule = reject(parent, true);
+            if (rule != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the start of the file for generated-code markers.
+     */
+    boolean acceptsContent(@NotNull VirtualFile file) {
+        byte[] head;
+        try (var in = file.getInputStream()) {
+            head = in.readNBytes(HEAD_BYTES);
+        } catch (IOException e) {
+            // left for hashing to report
+            return true;
+        }
+        var text = new String(head, StandardCharsets.UTF_8);
+        for (var marker : GENERATED_MARKERS) {
+            if (text.contains(marker)) {
+                stats.get("generated").add(file.getLength(), file.getLength() / 4);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the number of chunks a file produced, counting their tokens if there are too many.
+     */
+    boolean acceptsChunks(@NotNull List<String> bodies, @NotNull ToIntFunction<String> tokenCounter) {
+        if (bodies.size() <= maxChunks) {
+            return true;
+        }
+        long bytes = 0;
+        long tokens = 0;
+        for (var body : bodies) {
+            bytes += body.getBytes(StandardCharsets.UTF_8).length;
+            tokens += tokenCounter.applyAsInt(body);
+        }
+        stats.get("chunks").add(bytes, tokens);
+        return false;
+    }
+
+    /**
+     * Forgets a parsed .gitignore or info/exclude file after it changed.
+     */
+    void invalidate(@NotNull String path) {
+        if (path.endsWith("/.gitignore")) {
+            gitignores.remove(path.substring(0, path.length() - "/.gitignore".length()));
+        } else if (path.endsWith("/" + INFO_EXCLUDE)) {
+            gitignores.remove(path);
+        }
+    }
+
+    /**
+     * The files, bytes and estimated tokens each rule kept out of the index so far.
+     */
+    @NotNull String summary() {
+        var parts = new ArrayList<String>();
+        for (var entry : stats.entrySet()) {
+            var s = entry.getValue();
+            if (s.files.get() > 0 || s.directories.get() > 0) {
+                parts.add(String.format("%s: %d directories, %d files, %d KB, ~%d tokens", entry.getKey(),
+                                        s.directories.get(), s.files.get(), s.bytes.get() >> 10, s.tokens.get()));
+            }
+        }
+        return parts.isEmpty() ? "nothing skipped" : String.join("; ", parts);
+    }
+
+    /**
+     * The rule that rejects the file or directory, which is counted against it, or null if it is in scope.
+     */
+    private @Nullable String reject(@NotNull VirtualFile file, boolean directory) {
+        var rule = findRule(file, directory);
+        if (rule != null) {
+            var s = stats.get(rule);
+            if (directory) {
+                s.directories.incrementAndGet();
+            } else {
+                s.add(file.getLength(), file.getLength() / 4);
+            }
+        }
+        return rule;
+    }
+
+    private @Nullable String findRule(@NotNull VirtualFile file, boolean directory) {
+        if (!directory && !extensions.contains(file.getExtension())) {
+            return "extension";
+        }
+        var index = ProjectFileIndex.getInstance(project);
+        var root = ReadAction.compute(() -> index.isExcluded(file) ? null : index.getContentRootForFile(file));
+        if (root == null) {
+            return "excluded";
+        }
+        if (file.equals(root)) {
+            return null;
+        }
+        if (isGitIgnored(file, root, directory)) {
+            return "gitignore";
+        }
+        var relativePath = VfsUtilCore.getRelativePath(file, root);
+        if (relativePath != null && Boolean.TRUE.equals(excludePatterns.match(relativePath, directory))) {
+            return "glob";
+        }
+        if (ReadAction.compute(() -> GeneratedSourcesFilter.isGeneratedSourceByAnyFilter(file, project))) {
+            return "generated";
+        }
+        if (!directory && file.getLength() > maxFileBytes) {
+            return "size";
+        }
+        return null;
+    }
+
+    /**
+     * Applies the repository's info/exclude, then the .gitignore files from the repository root down to the file's
+     * directory; a deeper one overrides a shallower one. The repository root is the nearest parent holding .git,
+     * which may lie above the content root. Outside a repository, the .gitignore files from the content root down
+     * apply.
+     */
+    private boolean isGitIgnored(@NotNull VirtualFile file, @NotNull VirtualFile root, boolean directory) {
+        var directories = new ArrayList<VirtualFile>();
+        VirtualFile repository = null;
+        for (var parent = file.getParent(); parent != null; parent = parent.getParent()) {
+            directories.add(0, parent);
+            if (parent.findChild(".git") != null) {
+                repository = parent;
+                break;
+            }
+        }
+        Boolean ignored = null;
+        if (repository == null) {
+            directories.removeIf(dir -> !VfsUtilCore.isAncestor(root, dir, false));
+        } else {
+            var exclude = repository.findFileByRelativePath(INFO_EXCLUDE);
+            var rules = gitignores.computeIfAbsent(repository.getPath() + "/" + INFO_EXCLUDE, path -> readIgnoreFile(exclude));
+            ignored = match(rules, file, repository, directory, null);
+        }
+        for (var dir : directories) {
+            var rules = gitignores.computeIfAbsent(dir.getPath(), path -> readIgnoreFile(dir.findChild(".gitignore")));
+            ignored = match(rules, file, dir, directory, ignored);
+        }
+        return Boolean.TRUE.equals(ignored);
+    }
+
+    /**
+     * The verdict of rules, relative to dir, for file, or previous if they say nothing about it.
+     */
+    private static @Nullable Boolean match(@NotNull IgnoreRules rules,
+                                           @NotNull VirtualFile file,
+                                           @NotNull VirtualFile dir,
+                                           boolean directory,
+                                           @Nullable Boolean previous)
+    {
+        var relativePath = VfsUtilCore.getRelativePath(file, dir);
+        if (rules.isEmpty() || relativePath == null) {
+            return previous;
+        }
+        var verdict = rules.match(relativePath, directory);
+        return verdict != null ? verdict : previous;
+    }
+
+    private static @NotNull IgnoreRules readIgnoreFile(@Nullable VirtualFile file) {
+        if (file == null || file.isDirectory()) {
+            return IgnoreRules.EMPTY;
+        }
+        try {
+            return IgnoreRules.parse(new String(file.contentsToByteArray(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.warn("Unable to read " + file.getPath(), e);
+            return IgnoreRules.EMPTY;
+        }
+    }
+
+    private static class RuleStats {
+        final AtomicLong directories = new AtomicLong();
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong tokens = new AtomicLong();
+
+        void add(long fileBytes, long fileTokens) {
+            files.incrementAndGet();
+            bytes.addAndGet(fileBytes);
+            tokens.addAndGet(fileTokens);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.sourcegraph.jvector;
+
+import com.intellij.openapi.application.PathManager;
+import com.sourcegraph.config.UserLevelConfig;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Tuning knobs for the local JVector index. Values are read from the user-level properties file
+ * (~/.sourcegraph-jetbrains.properties) so they can be changed without a settings UI.
+ */
+public class JVectorConfig {
+    private static final String DEFAULT_INDEXED_EXTENSIONS =
+            "java,kt,kts,scala,groovy,py,js,jsx,ts,tsx,go,rs,c,h,cc,cpp,hpp,cs,rb,php,swift,md";
+    private static final String DEFAULT_EXCLUDE_PATTERNS = "node_modules/,vendor/,*.min.js";
+
+    /**
+     * Number of embedding requests the initial scan keeps in flight at once.
+     */
+    public static int getEmbeddingConcurrency() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.embeddingConcurrency", 4));
+    }
+
+    /**
+     * Number of threads that hash and chunk files ahead of the embedding stage.
+     */
+    public static int getChunkingConcurrency() {
+        int defaultValue = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.chunkingConcurrency", defaultValue));
+    }
+
+    /**
+     * Maximum number of chunks sent in one OpenAI embeddings request (the API allows 2048).
+     */
+    public static int getOpenAIMaxBatchInputs() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.openai.maxBatchInputs", 512));
+    }
+
+    /**
+     * Maximum estimated tokens sent in one OpenAI embeddings request. Kept well below the API's
+     * per-request limit because token counts are estimated.
+     */
+    public static int getOpenAIMaxBatchTokens() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.openai.maxBatchTokens", 100_000));
+    }
+
+    /**
+     * Base URL of the OpenAI-compatible embeddings API, e.g. a proxy or a local server.
+     */
+    public static String getOpenAIBaseUrl() {
+        return UserLevelConfig.getStringProperty("cody.codelocal.openai.baseUrl", "https://api.openai.com/");
+    }
+
+    /**
+     * Requests per minute allowed by the API key; 0 (default) learns the limit from the x-ratelimit response
+     * headers.
+     */
+    public static int getOpenAIRequestsPerMinute() {
+        return Math.max(0, UserLevelConfig.getIntProperty("cody.codelocal.openai.requestsPerMinute", 0));
+    }
+
+    /**
+     * Tokens per minute allowed by the API key; 0 (default) learns the limit from the x-ratelimit response
+     * headers.
+     */
+    public static int getOpenAITokensPerMinute() {
+        return Math.max(0, UserLevelConfig.getIntProperty("cody.codelocal.openai.tokensPerMinute", 0));
+    }
+
+    /**
+     * Number of times a throttled or transiently failed embeddings request is sent before the chunks it carries
+     * are given up on until the file is next updated.
+     */
+    public static int getEmbeddingMaxAttempts() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.embeddings.maxAttempts", 6));
+    }
+
+    /**
+     * Largest chunk, in tokens of the embeddings provider, that the chunker produces. Smaller chunks make more
+     * precise search results; larger ones carry more surrounding context.
+     */
+    public static int getChunkMaxTokens() {
+        return Math.max(16, UserLevelConfig.getIntProperty("cody.codelocal.chunk.maxTokens", 512));
+    }
+
+    /**
+     * File extensions that are indexed, as a comma-separated list without dots.
+     */
+    public static Set<String> getIndexedExtensions() {
+        var value = UserLevelConfig.getStringProperty("cody.codelocal.index.extensions", DEFAULT_INDEXED_EXTENSIONS);
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Paths left out of the index, as a comma-separated list of .gitignore-style patterns relative to each content
+     * root. Applied on top of the project's .gitignore files and the IDE's excluded directories.
+     */
+    public static List<String> getIndexExcludePatterns() {
+        var value = UserLevelConfig.getStringProperty("cody.codelocal.index.exclude", DEFAULT_EXCLUDE_PATTERNS);
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Files larger than this are not indexed; they are almost always data, lockfiles or bundled code.
+     */
+    public static long getIndexMaxFileBytes() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.index.maxFileKb", 1024)) * 1024L;
+    }
+
+    /**
+     * Files that chunk into more than this many chunks are not indexed.
+     */
+    public static int getIndexMaxChunksPerFile() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.index.maxChunksPerFile", 500));
+    }
+
+    /**
+     * Which {@link EmbeddingsProvider} to index with: "openai" (default) or "jlama" for fully offline indexing.
+     */
+    public static String getEmbeddingsProvider() {
+        return UserLevelConfig.getStringProperty("cody.codelocal.embeddings.provider", "openai");
+    }
+
+    /**
+     * Width of the vectors stored in the index, e.g. 256, 512 or 1024; 0 (default) keeps the model's full width.
+     * Vectors are truncated and renormalized, which suits Matryoshka-trained models such as text-embedding-3.
+     * Changing it rebuilds the index.
+     */
+    public static int getEmbeddingDimension() {
+        return Math.max(0, UserLevelConfig.getIntProperty("cody.codelocal.embeddings.dimension", 0));
+    }
+
+    /**
+     * Directory holding the safetensors embedding model used by the "jlama" provider.
+     */
+    public static Path getJlamaModelPath() {
+        var defaultPath = Path.of(PathManager.getSystemPath(), "codelocal", "models", "embeddings");
+        return Path.of(UserLevelConfig.getStringProperty("cody.codelocal.jlama.modelPath", defaultPath.toString()));
+    }
+
+    /**
+     * Threads used by the Jlama provider, both inside the model and for embedding a batch concurrently.
+     */
+    public static int getJlamaThreads() {
+        int defaultValue = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.jlama.threads", defaultValue));
+    }
+
+    /**
+     * Context length of the Jlama embedding model; longer chunks are truncated before embedding.
+     */
+    public static int getJlamaMaxTokens() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.jlama.maxTokens", 512));
+    }
+
+    /**
+     * How searches score candidates: "none" always uses full-precision vectors, "pq" always searches over
+     * product-quantized codes, and "auto" (default) switches to PQ once raw vectors outgrow the memory budget.
+     */
+    public static String getSearchCompression() {
+        return UserLevelConfig.getStringProperty("cody.codelocal.search.compression", "auto");
+    }
+
+    /**
+     * Memory the in-heap PQ codes of one index may use.
+     */
+    public static long getSearchMemoryBudgetBytes() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.search.memoryBudgetMb", 256)) * (1L << 20);
+    }
+
+    /**
+     * Recall/latency knob for compressed search: how many candidates per requested result are reranked
+     * against full-precision vectors read from disk.
+     */
+    public static int getSearchOverquery() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.search.overquery", 4));
+    }
+
+    /**
+     * Minimum number of vectors in the index above which searches go through package and file summaries first
+     * and then search only the chunks of the closest files; 0 disables the summary stage.
+     */
+    public static int getSearchHierarchyMinVectors() {
+        return Math.max(0, UserLevelConfig.getIntProperty("cody.codelocal.search.hierarchy.minVectors", 50_000));
+    }
+
+    /**
+     * Number of packages (directories) whose files the summary stage ranks.
+     */
+    public static int getSearchHierarchyPackages() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.search.hierarchy.packages", 16));
+    }
+
+    /**
+     * Number of files, among those of the chosen packages, whose chunks are searched; at least the number of
+     * requested results.
+     */
+    public static int getSearchHierarchyFiles() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.search.hierarchy.files", 64));
+    }
+
+    /**
+     * Disk space the shared embedding cache may use per embeddings model; 0 disables the cache.
+     */
+    public static long getEmbeddingCacheBytes() {
+        return Math.max(0, UserLevelConfig.getIntProperty("cody.codelocal.embeddingCache.maxSizeMb", 1024)) * (1L << 20);
+    }
+
+    /**
+     * How long a file must go without further changes before it is re-indexed, so that repeated saves and
+     * bulk VFS changes such as a branch switch collapse into one update per file.
+     */
+    public static int getUpdateDebounceMillis() {
+        return Math.max(0, UserLevelConfig.getIntProperty("cody.codelocal.updates.debounceMs", 1000));
+    }
+
+    /**
+     * Maximum number of queued file changes applied between two commits of the index metadata.
+     */
+    public static int getUpdateBatchSize() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.updates.batchSize", 256));
+    }
+
+    /**
+     * Interval between group commits of index changes. A crash loses at most this much indexing work, which is
+     * redone by the next scan.
+     */
+    public static int getSyncIntervalMillis() {
+        return Math.max(100, UserLevelConfig.getIntProperty("cody.codelocal.syncIntervalMs", 1000));
+    }
+
+    /**
+     * Minimum number of inserts buffered in the in-memory delta graph before it is merged into the on-disk graph.
+     * Larger indexes merge less often: the delta may also grow to a quarter of the on-disk graph.
+     */
+    public static int getGraphDeltaMergeSize() {
+        return Math.max(1, UserLevelConfig.getIntProperty("cody.codelocal.graph.deltaMergeSize", 10_000));
+    }
+
+    /**
+     * Number of recently checked-out git branches whose file versions stay in the index, hidden from searches, so
+     * that checking one of them out again needs no embedding calls. 0 deletes replaced chunks right away.
+     */
+    public static int getRetainedBranches() {
+        return Math.max(0, UserLevelConfig.getIntProperty("cody.codelocal.branches.retained", 4));
+    }
+
+    /**
+     * Index bundle that a project which has not been indexed yet starts from, e.g. one exported by a CI job, so
+     * that only files changed since it was built are embedded. Relative paths are resolved against the project
+     * directory; empty (default) disables importing.
+     */
+    public static String getBundleImportPath() {
+        return UserLevelConfig.getStringProperty("cody.codelocal.bundle.import", "").trim();
+    }
+
+    /**
+     * Where the index is exported as a bundle after every completed scan, resolved like
+     * {@link #getBundleImportPath()}; empty (default) disables exporting.
+     */
+    public static String getBundleExportPath() {
+        return UserLevelConfig.getStringProperty("cody.codelocal.bundle.export", "").trim();
+    }
+
+    /**
+     * Share of deleted ordinals, in percent, above which the index is compacted: live vectors are renumbered
+     * densely and the graph is rebuilt without the deleted nodes.
+     */
+    public static int getCompactionDeletedPercent() {
+        int value = UserLevelConfig.getIntProperty("cody.codelocal.compaction.deletedRatioPercent", 50);
+        return Math.min(100, Math.max(1, value));
+    }
+}
@@ -3,9 +3,18 @@ package com.sourcegraph.jvector;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.fileEditor.ex.IdeDocumentHistory;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Computable;
 import com.intellij.openapi.vfs.AsyncFileListener;
+import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileVisitor;
@@ -14,173 +23,1035 @@ import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
 import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
 import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
 import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
-import com.intellij.psi.PsiClass;
-import com.intellij.psi.PsiCodeBlock;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
 import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiJavaFile;
 import com.intellij.psi.PsiManager;
-import com.intellij.psi.PsiMethod;
-import io.github.jbellis.jvector.disk.SimpleMappedReader;
-import io.github.jbellis.jvector.graph.GraphIndexBuilder;
-import io.github.jbellis.jvector.graph.ListRandomAccessVectorValues;
-import io.github.jbellis.jvector.vector.VectorEncoding;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.util.FixedBitSet;
 import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.mapdb.Atomic;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.Serializer;
 
-import java.io.DataOutput;
-import java.io.DataOutputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An asynchronous file listener that reacts to file changes within a project, maintaining and updating an
  * index of file embeddings and a map of embeddings to source file.
+ * <p>
+ * The scan, queued VFS changes, periodic merges and compaction all write through {@link #writeLock}, so the index
+ * has a single writer at a time. Searches run concurrently with all of them without locking: they pin the current
+ * {@link IndexGeneration}, and within it the graph layers they traverse, and read the thread-safe MapDB maps.
  */
 public class JVectorFileListener implements AsyncFileListener, AutoCloseable {
     private static final Logger log = Logger.getInstance(JVectorFileListener.class);
+    private static final VectorSimilarityFunction SIMILARITY = VectorSimilarityFunction.DOT_PRODUCT;
+    // about 1.8M logged mutations
+    private static final long MAX_LOG_BYTES = 16L << 20;
+    // below this, deleted ordinals cost too little to be worth a rebuild
+    private static final int MIN_COMPACTION_SIZE = 10_000;
+    private static final String LEGACY_MODEL_ID = "openai:text-embedding-3-small";
+    // how often a replaced generation is checked for searches still using it
+    private static final long RETIRE_POLL_MILLIS = 1000;
 
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
 
     private final Project project;
 
+    private final Path cachePath;
     private final DB db;
-    private final Map<Integer, String> chunksByOrdinal;
     private final Map<String, int[]> ordinalsByFile;
     private final Map<String, byte[]> fileContentHashes;
+    // (timestamp, length) of each file when it was last hashed
+    private final Map<String, long[]> fileStamps;
+    // the branch that was checked out when each file was last indexed
+    private final Map<String, String> branchByFile;
+    private final BranchOverlays branches;
 
-    private final GraphIndexBuilder<float[]> builder;
-    private final Path graphIndexPath;
-    private final ArrayList<float[]> vectors;
-    private final ListRandomAccessVectorValues ravv;
+    // the generation that searches and updates use; replaced by compaction
+    private final Atomic.Integer generationNumber;
+    // EmbeddingsProvider.modelId() of the vectors in the index, including their dimension
+    private final Atomic.String indexedModel;
+    private volatile IndexGeneration current;
+    // replaced generations that searches may still be reading; guarded by writeLock
+    private final List<IndexGeneration> retired = new ArrayList<>();
     private final EmbeddingsProvider embeddingsProvider;
-    private boolean dirty;
+    private final Chunker chunker;
+    private final Set<String> indexedExtensions = JVectorConfig.getIndexedExtensions();
+    // read once: searches run on every chat message
+    private final int searchOverquery = JVectorConfig.getSearchOverquery();
+    private final int hierarchyMinVectors = JVectorConfig.getSearchHierarchyMinVectors();
+    private final int hierarchyPackages = JVectorConfig.getSearchHierarchyPackages();
+    private final int hierarchyFiles = JVectorConfig.getSearchHierarchyFiles();
+    private final IndexScopePolicy scope;
+    // the single-writer lock: serializes mutations of the graph, the vector store, the MapDB maps and the current
+    // generation. Searches never take it; they pin the current generation instead
+    private final Object writeLock = new Object();
+    private volatile boolean dirty;
+    private volatile boolean closed;
+    // set by close() before it waits for writeLock, so that a compaction holding it gives up
+    private volatile boolean closing;
+    private volatile boolean scanning;
+    // set once a scan has run to completion since the project was opened
+    private volatile boolean scanned;
+    // paths with unapplied VFS changes, oldest first; guarded by itself
+    private final LinkedHashMap<String, PendingChange> pendingChanges = new LinkedHashMap<>();
+    // pendingChanges as of the last commit, path to movedFrom or "", so queued work survives a restart
+    private final Map<String, String> persistedChanges;
+    // how long a path's events must have been quiet before its change is applied, and how many files one
+    // MapDB commit covers
+    private final long debounceNanos;
+    private final int batchSize;
 
     public JVectorFileListener(Project project) {
         this.project = project;
         debug("%s: create", project.getName());
 
-        vectors = new ArrayList<>();
-        ravv = new ListRandomAccessVectorValues(vectors, 1536);
-        builder = new GraphIndexBuilder<>(ravv, VectorEncoding.FLOAT32, VectorSimilarityFunction.DOT_PRODUCT, 16, 100, 1.2f, 1.2f);
-        embeddingsProvider = new OpenAIEmbeddingsProvider();
+        embeddingsProvider = createEmbeddingsProvider();
+        int maxChunkTokens = Math.min(JVectorConfig.getChunkMaxTokens(), embeddingsProvider.maxInputTokens());
+        chunker = new PsiChunker(embeddingsProvider::countTokens, maxChunkTokens);
+        scope = new IndexScopePolicy(project);
 
         // create a cache directory for the project
-        var cachePath = Path.of(PathManager.getSystemPath(), "codelocal", project.getName());
+        cachePath = Path.of(PathManager.getSystemPath(), "codelocal", project.getName());
         try {
             Files.createDirectories(cachePath);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
 
-        // mapdb and graph index both live in the cache directory
+        // mapdb lives in the cache directory, raw vectors and graph index in the current generation's directory
         var mapDBPath = cachePath.resolve("map.db");
-        graphIndexPath = cachePath.resolve("jvector.db");
-        debug("mapDBPath=%s, graphIndexPath=%s", mapDBPath, graphIndexPath);
+        debug("mapDBPath=%s, graphIndexPath=%s", mapDBPath, cachePath);
 
-        // create mapdb maps
-        db = DBMaker.fileDB(mapDBPath.toFile()).fileMmapEnable().make();
-        chunksByOrdinal = db.hashMap("chunksByOrdinal", Serializer.INTEGER, Serializer.STRING).createOrOpen();
+        // create mapdb maps; with transactions enabled, a commit is atomic and survives a crash
+        db = DBMaker.fileDB(mapDBPath.toFile()).fileMmapEnable().transactionEnable().make();
         ordinalsByFile = db.hashMap("ordinalsByFile", Serializer.STRING, Serializer.INT_ARRAY).createOrOpen();
         fileContentHashes = db.hashMap("fileContentHashes", Serializer.STRING, Serializer.BYTE_ARRAY).createOrOpen();
+        fileStamps = db.hashMap("fileStamps", Serializer.STRING, Serializer.LONG_ARRAY).createOrOpen();
+        branchByFile = db.hashMap("branchByFile", Serializer.STRING, Serializer.STRING).createOrOpen();
+        persistedChanges = db.hashMap("pendingChanges", Serializer.STRING, Serializer.STRING).createOrOpen();
+        generationNumber = db.atomicInteger("generation").createOrOpen();
+        indexedModel = db.atomicString("embeddingsModel").createOrOpen();
 
-        // load graph index
-        if (Files.exists(graphIndexPath)) {
+        // raw vectors are memory-mapped and keyed by ordinal, so they survive restarts without costing heap;
+        // searches are served from the memory-mapped base graph
+        try {
+            var modelId = embeddingsProvider.modelId();
+            var recorded = indexedModel.get();
+            if (recorded == null && !ordinalsByFile.isEmpty()) {
+                // indexed before the model was recorded, when OpenAI at full width was the only provider
+                recorded = LEGACY_MODEL_ID;
+            }
+            if (recorded != null && !recorded.equals(modelId)) {
+                debug("%s: embeddings changed from %s to %s, rebuilding the index", projectName(), recorded, modelId);
+                dropIndex();
+            }
+            indexedModel.set(modelId);
+            int number = generationNumber.get();
+            IndexGeneration.deleteOthers(db, cachePath, number);
+            current = IndexGeneration.open(db, cachePath, number, embeddingsProvider.dimension(), SIMILARITY, ordinalsByFile);
+            db.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var basePath = project.getBasePath();
+        branches = new BranchOverlays(basePath == null ? null : Path.of(basePath),
+                                      JVectorConfig.getRetainedBranches(),
+                                      db.atomicString("recentBranches").createOrOpen());
+        deleteParked(branches.refresh());
+        db.commit();
+        for (var entry : new ArrayList<>(persistedChanges.entrySet())) {
+            // changes that were queued when the IDE last exited, or whose embedding requests kept failing
+            var movedFrom = entry.getValue();
+            enqueue(entry.getKey(), movedFrom.isEmpty() ? null : movedFrom);
+        }
+        if (shouldCompress()) {
+            try {
+                current.quantized = QuantizedVectors.load(current.quantizedPath, current.vectors, SIMILARITY);
+            } catch (IOException e) {
+                log.warn("Unable to load PQ codes, they will be retrained", e);
+            }
+        } else {
+            dropQuantizer();
+        }
+
+        scheduler.scheduleWithFixedDelay(this::maybeMerge, 1, 1, TimeUnit.MINUTES);
+        scheduler.scheduleWithFixedDelay(this::maybeCompact, 10, 10, TimeUnit.MINUTES);
+        long syncInterval = JVectorConfig.getSyncIntervalMillis();
+        scheduler.scheduleWithFixedDelay(this::commit, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        int debounceMillis = JVectorConfig.getUpdateDebounceMillis();
+        debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        batchSize = JVectorConfig.getUpdateBatchSize();
+        long drainInterval = Math.max(100, debounceMillis / 2);
+        scheduler.scheduleWithFixedDelay(this::drainPendingChanges, drainInterval, drainInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forgets every indexed file and starts an empty generation, so that the next scan re-indexes the project
+     * from scratch. The old generations are deleted by the caller. Vectors of different models or dimensions
+     * cannot share a store or a graph, but chunks still found in the embedding cache are not sent to the model
+     * again.
+     */
+    private void dropIndex() {
+        ordinalsByFile.clear();
+        fileContentHashes.clear();
+        fileStamps.clear();
+        branchByFile.clear();
+        generationNumber.set(generationNumber.get() + 1);
+    }
+
+    private static @NotNull EmbeddingsProvider createEmbeddingsProvider() {
+        var provider = JVectorConfig.getEmbeddingsProvider();
+        EmbeddingsProvider uncached;
+        switch (provider) {
+            case "openai":
+                uncached = new OpenAIEmbeddingsProvider();
+                break;
+            case "jlama":
+                uncached = new JlamaEmbeddingsProvider(JVectorConfig.getJlamaModelPath().toFile());
+                break;
+            default:
+                throw new IllegalStateException("Unknown cody.codelocal.embeddings.provider: " + provider);
+        }
+
+        var full = uncached;
+        var cacheBytes = JVectorConfig.getEmbeddingCacheBytes();
+        if (cacheBytes > 0) {
+            // shared by all projects, so a chunk seen in any of them is not embedded again
+            var cacheDir = Path.of(PathManager.getSystemPath(), "codelocal");
             try {
-                builder.load(new SimpleMappedReader(graphIndexPath));
+                Files.createDirectories(cacheDir);
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
+            full = new CachingEmbeddingsProvider(uncached, cacheDir.resolve("embedding-cache.db"), cacheBytes);
         }
 
-        scheduler.schedule(this::save, 1, java.util.concurrent.TimeUnit.MINUTES);
+        // truncate after the cache, so that it holds full vectors whatever dimension is configured
+        int dimension = JVectorConfig.getEmbeddingDimension();
+        if (dimension == 0 || dimension >= full.dimension()) {
+            return full;
+        }
+        return new TruncatingEmbeddingsProvider(full, dimension);
     }
 
     /**
-     * Scans existing files in the project.
+     * Scans existing files in the project, (re)indexing every file whose content changed since the last scan.
+     * <p>
+     * The scan is a pipeline: the VFS walk runs on the calling thread, hashing and PSI chunking run on a small
+     * pool under read actions, embedding requests run on a pool of {@link JVectorConfig#getEmbeddingConcurrency()}
+     * threads, and graph insertion is serialized under {@link #writeLock}. At most twice the embedding concurrency
+     * files are in flight at once, so a slow embeddings endpoint throttles the walk instead of piling up chunks.
+     * <p>
+     * Files are indexed in {@link ScanQueue} order: files open in an editor, recently edited files and their
+     * directories first, so searches over what the developer is working on work within seconds of startup.
+     * <p>
+     * When there is no on-disk graph yet, the rest of the scan is a bulk load: once those first files are in the
+     * graph, chunks are only appended to the vector store, and the graph is built over all of them at the end with
+     * one insert thread per core. Files opened after that point are still indexed first, but become searchable
+     * only when the scan ends.
+     * <p>
+     * A project that has not been indexed yet starts from the configured index bundle, if any, so the scan only
+     * re-indexes the files that changed since the bundle was built.
      */
-    public void scanExistingFiles() {
-        var visited = new AtomicInteger();
+    public void scanExistingFiles(@NotNull ProgressIndicator indicator) {
+        indicator.setIndeterminate(true);
+        var importPath = bundlePath(JVectorConfig.getBundleImportPath());
+        if (importPath != null && ordinalsByFile.isEmpty() && Files.exists(importPath)) {
+            indicator.setText("Importing index bundle");
+            try {
+                importBundle(importPath);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to import index bundle " + importPath + ", indexing from scratch", e);
+            }
+        }
+        indicator.setText("Collecting files to index");
+        var files = collectIndexableFiles(indicator);
+        // indexed files the walk no longer finds, e.g. newly ignored ones, are removed by the worker
+        var collected = new HashSet<String>();
+        for (var file : files) {
+            collected.add(file.getPath());
+        }
+        for (var path : new ArrayList<>(ordinalsByFile.keySet())) {
+            if (!collected.contains(path)) {
+                enqueue(path, null);
+            }
+        }
+
+        var queue = new ScanQueue<>(files, VirtualFile::getPath, openPaths(), editedPaths());
+        var connection = project.getMessageBus().connect();
+        connection.subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new FileEditorManagerListener() {
+            @Override
+            public void fileOpened(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+                queue.promote(file.getPath());
+            }
+        });
+
+        indicator.setIndeterminate(false);
+        indicator.setText(String.format("Indexing %d files", files.size()));
+        scanning = true;
+        boolean bulkLoad;
+        synchronized (writeLock) {
+            bulkLoad = !closed && current.graph.baseSize() == 0;
+        }
+        var embeddingConcurrency = JVectorConfig.getEmbeddingConcurrency();
+        var chunkExecutor = Executors.newFixedThreadPool(JVectorConfig.getChunkingConcurrency());
+        var embeddingExecutor = Executors.newFixedThreadPool(embeddingConcurrency);
+        var maxInFlight = 2 * embeddingConcurrency;
+        var inFlight = new Semaphore(maxInFlight);
+        var completed = new AtomicInteger();
         var updated = new AtomicInteger();
+        try {
+            while (true) {
+                var file = queue.poll();
+                if (file == null) {
+                    break;
+                }
+                if (bulkLoad && queue.lastRank() >= ScanQueue.NEARBY) {
+                    // the files worked on are in the graph; wait for the last of them before deferring inserts
+                    acquire(inFlight, maxInFlight, indicator);
+                    inFlight.release(maxInFlight);
+                    synchronized (writeLock) {
+                        if (!closed) {
+                            current.graph.beginBulkLoad();
+                        }
+                    }
+                    bulkLoad = false;
+                }
+                acquire(inFlight, 1, indicator);
+                CompletableFuture.supplyAsync(() -> indicator.isCanceled() ? null : prepareUpdate(file), chunkExecutor)
+                        .thenApplyAsync(update -> update == null || indicator.isCanceled() ? null : computeEmbeddings(update), embeddingExecutor)
+                        .thenAccept(update -> {
+                            if (update != null && !indicator.isCanceled()) {
+                                if (!applyUpdate(update)) {
+                                    // compacted while the file was being embedded
+                                    maybeUpdateFile(file);
+                                }
+                                updated.incrementAndGet();
+                            }
+                        })
+                        .whenComplete((ignored, th) -> {
+                            if (th != null) {
+                                // one bad file (or one failed request) should not abort the whole scan
+                                log.warn("Unable to index " + file.getPath(), th);
+                                if (isRetryable(th)) {
+                                    // retried in the background once the endpoint recovers
+                                    enqueue(file.getPath(), null);
+                                }
+                            }
+                            inFlight.release();
+                            indicator.setFraction((double) completed.incrementAndGet() / files.size());
+                            indicator.setText2(file.getPresentableUrl());
+                        });
+            }
+            // wait for the tail of the pipeline to drain
+            acquire(inFlight, maxInFlight, indicator);
+        } finally {
+            connection.disconnect();
+            chunkExecutor.shutdownNow();
+            embeddingExecutor.shutdownNow();
+            scanning = false;
+        }
+        indicator.setIndeterminate(true);
+        indicator.setText("Building the search graph");
+        maybeTrainQuantizer();
+        // also ends a bulk load
+        save();
+        if (!indicator.isCanceled()) {
+            scanned = true;
+        }
+        debug("%s: scanExistingFiles: files=%d, updated=%d", projectName(), files.size(), updated.get());
+        log.info(String.format("%s: left out of the index: %s", projectName(), scope.summary()));
+
+        var exportPath = bundlePath(JVectorConfig.getBundleExportPath());
+        if (exportPath != null) {
+            indicator.setText("Exporting index bundle");
+            try {
+                exportBundle(exportPath);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Unable to export index bundle " + exportPath, e);
+            }
+        }
+    }
+
+    /**
+     * True once searches can be answered from the index: it holds live chunks, or the first scan has finished, in
+     * which case an empty index means the project has nothing to index.
+     */
+    public boolean isReady() {
+        return scanned || current.graph.liveCount() > 0;
+    }
+
+    /**
+     * What each {@link IndexScopePolicy} rule has kept out of the index since the project was opened: files,
+     * bytes and estimated tokens.
+     */
+    public @NotNull String indexScopeSummary() {
+        return scope.summary();
+    }
+
+    /**
+     * A configured bundle path resolved against the project directory, or null if none is configured.
+     */
+    private @Nullable Path bundlePath(@NotNull String configured) {
+        var basePath = project.getBasePath();
+        if (configured.isEmpty() || basePath == null) {
+            return null;
+        }
+        return Path.of(basePath).resolve(configured);
+    }
+
+    /**
+     * Packs the index into a portable bundle at path: vectors, graph, chunks and file hashes, with the files
+     * under the project directory keyed by their path relative to it. Updates wait while the bundle is written;
+     * searches do not.
+     */
+    public void exportBundle(@NotNull Path path) throws IOException {
+        var root = projectRoot();
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            var generation = current;
+            // the bundle has no graph log, so everything logged goes into the base layer first
+            generation.graph.merge();
+            generation.saveSummaries();
+            db.commit();
+            var fileTexts = new FileTexts();
+            generation.export(path, embeddingsProvider.modelId(), branches.revision(), root, ordinalsByFile, fileContentHashes,
+                              ordinal -> chunkText(generation, ordinal, fileTexts));
+        }
+        debug("%s: exported the index to %s", projectName(), path);
+    }
+
+    /**
+     * Replaces the index with a bundle written by {@link #exportBundle}, possibly on another machine, matching
+     * files by their path relative to the project directory. Nothing is embedded here: the next scan re-indexes
+     * only the files whose content hash differs from the bundle's, and reuses the bundle's vector for every chunk
+     * whose text is unchanged.
+     *
+     * @throws IOException if the bundle is corrupt, or was built with another embeddings model or dimension
+     */
+    public void importBundle(@NotNull Path path) throws IOException {
+        var root = projectRoot();
+        try (var bundle = IndexBundle.open(path)) {
+            var modelId = embeddingsProvider.modelId();
+            if (!bundle.modelId.equals(modelId)) {
+                throw new IOException(String.format("%s was built with %s, but the index uses %s", path, bundle.modelId, modelId));
+            }
+            synchronized (writeLock) {
+                if (closed) {
+                    return;
+                }
+                var old = current;
+                // a failed import rolls back to exactly this state
+                old.graph.sync();
+                db.commit();
+
+                IndexGeneration next;
+                try {
+                    ordinalsByFile.clear();
+                    fileContentHashes.clear();
+                    fileStamps.clear();
+                    branchByFile.clear();
+                    next = IndexGeneration.importBundle(db, cachePath, old.number + 1, bundle, SIMILARITY, root,
+                                                        ordinalsByFile, fileContentHashes);
+                    generationNumber.set(next.number);
+                    db.commit();
+                } catch (IOException | RuntimeException e) {
+                    db.rollback();
+                    throw e;
+                }
+                replaceGeneration(old, next);
+            }
+            debug("%s: imported %d files indexed at %s", projectName(), ordinalsByFile.size(), bundle.revision);
+        }
+    }
+
+    private @NotNull String projectRoot() throws IOException {
+        var basePath = project.getBasePath();
+        if (basePath == null) {
+            throw new IOException(projectName() + " has no project directory to resolve bundle paths against");
+        }
+        return basePath;
+    }
+
+    /**
+     * Walks the content roots and returns the files that should be indexed, without entering directories that
+     * the {@link IndexScopePolicy} leaves out.
+     */
+    private @NotNull List<VirtualFile> collectIndexableFiles(@NotNull ProgressIndicator indicator) {
+        var files = new ArrayList<VirtualFile>();
         for (var root : ProjectRootManager.getInstance(project).getContentRoots()) {
             VfsUtil.visitChildrenRecursively(root, new VirtualFileVisitor<Void>() {
                 @Override
                 public boolean visitFile(@NotNull VirtualFile file) {
-                    visited.incrementAndGet();
+                    indicator.checkCanceled();
                     if (file.isDirectory()) {
-                        return true;
+                        return scope.acceptsDirectory(file);
                     }
 
-                    if (shouldIndex(file)) {
-                        if (maybeUpdateFile(file)) {
-                            updated.incrementAndGet();
-                        }
+                    if (scope.accepts(file)) {
+                        files.add(file);
                     }
                     return false;
                 }
             });
         }
-        save();
-        debug("%s: scanExistingFiles: visited=%d, updated=%d", projectName(), visited.get(), updated.get());
+        return files;
+    }
+
+    private @NotNull List<String> openPaths() {
+        return ApplicationManager.getApplication().runReadAction((Computable<List<String>>) () -> {
+            var paths = new ArrayList<String>();
+            for (var file : FileEditorManager.getInstance(project).getOpenFiles()) {
+                paths.add(file.getPath());
+            }
+            return paths;
+        });
+    }
+
+    private @NotNull List<String> editedPaths() {
+        return ApplicationManager.getApplication().runReadAction((Computable<List<String>>) () -> {
+            var paths = new ArrayList<String>();
+            for (var file : IdeDocumentHistory.getInstance(project).getChangedFiles()) {
+                paths.add(file.getPath());
+            }
+            return paths;
+        });
     }
 
     /**
-     * Handles a single file during the scan. This method should include the logic
-     * for processing each file (e.g., indexing content, checking file type).
+     * Acquires permits from the semaphore, polling so that cancellation of the indicator is noticed promptly.
+     */
+    private static void acquire(@NotNull Semaphore semaphore, int permits, @NotNull ProgressIndicator indicator) {
+        try {
+            while (!semaphore.tryAcquire(permits, 100, TimeUnit.MILLISECONDS)) {
+                indicator.checkCanceled();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessCanceledException(e);
+        }
+    }
+
+    /**
+     * Re-indexes a single file if its content changed since it was last indexed.
      *
      * @param file the file to handle
+     * @return true if the file was re-indexed
      */
     private boolean maybeUpdateFile(VirtualFile file) {
+        while (true) {
+            var update = prepareUpdate(file);
+            if (update == null) {
+                return false;
+            }
+            if (applyUpdate(computeEmbeddings(update))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Hashes and chunks the file. Returns null if the file is unchanged since it was last indexed: either its
+     * timestamp and length match what was recorded then, which needs no I/O, or its content digest does.
+     */
+    private @Nullable FileUpdate prepareUpdate(@NotNull VirtualFile file) {
+        var path = file.getPath();
+        var generation = current;
+        var stamp = getStamp(file);
+        var oldHash = fileContentHashes.get(path);
+        if (oldHash != null && Arrays.equals(stamp, fileStamps.get(path))) {
+            return null;
+        }
         var hash = getHash(file);
-        var oldHash = fileContentHashes.get(file.getPath());
         if (oldHash != null && MessageDigest.isEqual(hash, oldHash)) {
-            return false;
+            // touched but not modified; remember the new stamp so the next check is free again
+            fileStamps.put(path, stamp);
+            return null;
+        }
+        // a file out of scope is updated to no chunks, so its hash is recorded and it is not read again until it changes
+        var chunks = scope.acceptsContent(file) ? chunkify(file) : List.<Chunk>of();
+        var bodies = new ArrayList<String>(chunks.size());
+        for (var chunk : chunks) {
+            bodies.add(chunk.text);
+        }
+        if (!scope.acceptsChunks(bodies, embeddingsProvider::countTokens)) {
+            chunks = List.of();
+            bodies.clear();
+        }
+        var ranges = new long[chunks.size()];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = Chunk.range(chunks.get(i).start, chunks.get(i).end);
+        }
+        var chunkHashes = new ArrayList<byte[]>(bodies.size());
+        for (var body : bodies) {
+            chunkHashes.add(getChunkHash(body));
         }
 
-        removeEmbeddings(file);
-        createEmbeddings(file);
-        fileContentHashes.put(file.getPath(), hash);
-        return true;
+        // chunks whose text is unchanged keep their ordinal and are not embedded again; chunks of versions
+        // parked on other branches are shown again, preferring the ones in use now
+        var reusedOrdinals = generation.parked.reusableOrdinals(path, ordinalsByFile.get(path), chunkHashes, ordinal -> {
+            var chunkHash = generation.chunkHashesByOrdinal.get(ordinal);
+            if (chunkHash == null) {
+                // indexed before chunk hashes were recorded
+                var body = generation.storedText(ordinal);
+                return body == null ? null : getChunkHash(body);
+            }
+            return chunkHash;
+        });
+        return new FileUpdate(file, generation.number, hash, stamp, bodies, ranges, chunkHashes, reusedOrdinals);
     }
 
-    private static byte[] getHash(VirtualFile file) {
-        MessageDigest digest;
+    /**
+     * Replaces the file's changed chunks with the freshly embedded ones; unchanged chunks keep their ordinals
+     * and graph nodes. This is the only place that appends to the graph, so it is serialized on {@link #writeLock}.
+     *
+     * @return false if the index was compacted since the update was prepared, so its reused ordinals are stale and
+     *         the file must be prepared again
+     */
+    private boolean applyUpdate(@NotNull FileUpdate update) {
+        synchronized (writeLock) {
+            if (closed) {
+                // a scan task that outlived close()
+                return true;
+            }
+            var generation = current;
+            if (update.generation != generation.number) {
+                return false;
+            }
+            var path = update.file.getPath();
+            var plan = ParkedChunks.plan(ordinalsByFile.get(path), update.reusedOrdinals,
+                                         ordinal -> unparkEmbedding(path, ordinal));
+            var ordinals = plan.ordinals;
+            for (int i = 0; i < ordinals.length; i++) {
+                if (ordinals[i] >= 0) {
+                    // unchanged text may still have moved within the file
+                    generation.setRange(ordinals[i], update.ranges[i]);
+                    continue;
+                }
+                int reused = update.reusedOrdinals[i];
+                // a reused ordinal that another update replaced meanwhile still has its vector in the store
+                var embedding = reused >= 0 ? generation.vectors.vectorValue(reused) : update.embeddings[i];
+                ordinals[i] = createEmbedding(path, update.ranges[i], update.chunkHashes.get(i), embedding);
+            }
+            parkEmbeddings(path, plan.replaced);
+            branchByFile.put(path, branches.head());
+            ordinalsByFile.put(path, ordinals);
+            fileContentHashes.put(path, update.hash);
+            fileStamps.put(path, update.stamp);
+            dirty = true;
+            int kept = plan.kept.size();
+            log.debug(String.format("%s: kept %d chunks, restored %d, indexed %d",
+                                    path, kept, plan.unparked, ordinals.length - kept - plan.unparked));
+            return true;
+        }
+    }
+
+    private static byte[] getChunkHash(@NotNull String body) {
         try {
-            digest = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256").digest(body.getBytes(StandardCharsets.UTF_8));
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
-        try (var fis = new FileInputStream(file.getPath())) {
-            byte[] byteArray = new byte[1024];
-            // Read the file data and update in digest
-            int bytesCount;
-            while ((bytesCount = fis.read(byteArray)) != -1) {
-                digest.update(byteArray, 0, bytesCount);
-            };
+    }
+
+    private static byte[] getHash(VirtualFile file) {
+        try {
+            return FileDigests.digest(Path.of(file.getPath()));
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+    }
+
+    /**
+     * The file's on-disk timestamp and length. Unlike the VFS modification stamp, the timestamp survives restarts.
+     */
+    private static long[] getStamp(VirtualFile file) {
+        return new long[] { file.getTimeStamp(), file.getLength() };
+    }
+
+    /**
+     * Returns the topK nearest chunks to the query embedding. Once the index has been quantized, candidates are
+     * scored by their in-memory PQ codes and only the best are reranked against vectors read from disk.
+     */
+    public @NotNull SearchResult search(float @NotNull [] query, int topK) {
+        var generation = pinGeneration();
+        try {
+            return search(generation, query, topK, null);
+        } finally {
+            generation.unpin();
+        }
+    }
+
+    private @NotNull SearchResult search(@NotNull IndexGeneration generation,
+                                         float @NotNull [] query,
+                                         int topK,
+                                         @Nullable SearchFilter filter)
+    {
+        var acceptOrds = filter == null ? null : generation.filters.resolve(filter);
+        var candidates = summaryCandidates(generation, query, topK, acceptOrds);
+        if (candidates != null) {
+            acceptOrds = candidates;
+        }
+        return generation.graph.search(query, topK, generation.quantized, searchOverquery, acceptOrds);
+    }
+
+    /**
+     * The first stage of a search over a large index: the chunks of the files closest to the query, within the
+     * packages closest to it, that also pass acceptOrds. Null if the index is too small for the stage to pay off,
+     * or if it finds too few chunks to fill topK, in which case the whole index is searched.
+     */
+    private @Nullable FixedBitSet summaryCandidates(@NotNull IndexGeneration generation,
+                                                    float @NotNull [] query,
+                                                    int topK,
+                                                    @Nullable FixedBitSet acceptOrds)
+    {
+        var vectors = generation.vectors;
+        if (hierarchyMinVectors == 0 || vectors.size() < hierarchyMinVectors) {
+            return null;
+        }
+        var ordinals = generation.summaries.candidates(query, hierarchyPackages, Math.max(topK, hierarchyFiles),
+                                                       vectors::vectorValue);
+        var candidates = new FixedBitSet(vectors.size());
+        for (var ordinal : ordinals) {
+            // a chunk hidden or deleted since the summaries last saw it would not count towards topK
+            if (ordinal < candidates.length() && generation.graph.isVisible(ordinal)
+                && (acceptOrds == null || ordinal < acceptOrds.length() && acceptOrds.get(ordinal))) {
+                candidates.set(ordinal);
+            }
+        }
+        return candidates.cardinality() < topK ? null : candidates;
+    }
+
+    /**
+     * Embeds the query and returns the topK most similar chunks, best first. Chunks whose file was re-indexed
+     * or deleted while the search ran are dropped, so fewer than topK matches may be returned.
+     */
+    public @NotNull List<ChunkMatch> search(@NotNull String query, int topK) {
+        return search(query, topK, null);
+    }
+
+    /**
+     * Like {@link #search(String, int)}, restricted to chunks of files that pass the filter. The restriction is
+     * applied while the graph is searched, so up to topK matches are returned however selective the filter is.
+     */
+    public @NotNull List<ChunkMatch> search(@NotNull String query, int topK, @Nullable SearchFilter filter) {
+        var embedding = embeddingsProvider.getEmbedding(query);
+        // ordinals are only meaningful within the generation that was searched
+        var generation = pinGeneration();
+        try {
+            var result = search(generation, embedding, topK, filter);
+            var matches = new ArrayList<ChunkMatch>();
+            var fileTexts = new FileTexts();
+            for (var ns : result.getNodes()) {
+                var body = chunkText(generation, ns.node, fileTexts);
+                var filePath = generation.filesByOrdinal.get(ns.node);
+                if (body == null || filePath == null) {
+                    continue;
+                }
+                matches.add(new ChunkMatch(filePath, body, ns.score));
+            }
+            return matches;
+        } finally {
+            generation.unpin();
+        }
+    }
+
+    /**
+     * The text of a chunk, read from its range in the file if the file still holds it there, and otherwise from
+     * the text stored in the index; null if neither is available, e.g. while the file waits to be re-indexed.
+     * An open document with unsaved changes is checked first, then the contents saved on disk, since edits that
+     * were not saved yet move the chunks below them.
+     */
+    private @Nullable String chunkText(@NotNull IndexGeneration generation,
+                                       int ordinal,
+                                       @NotNull FileTexts fileTexts)
+    {
+        var path = generation.filesByOrdinal.get(ordinal);
+        var range = generation.chunkRangesByOrdinal.get(ordinal);
+        var chunkHash = generation.chunkHashesByOrdinal.get(ordinal);
+        if (path != null && range != null && chunkHash != null) {
+            var body = textAt(fileTexts.current.computeIfAbsent(path, p -> loadText(p, false)), range, chunkHash);
+            if (body == null) {
+                body = textAt(fileTexts.saved.computeIfAbsent(path, p -> loadText(p, true)), range, chunkHash);
+            }
+            if (body != null) {
+                return body;
+            }
+        }
+        return generation.storedText(ordinal);
+    }
+
+    /**
+     * The text at range if it still hashes to chunkHash, otherwise null.
+     */
+    private static @Nullable String textAt(@Nullable CharSequence text, long range, byte @NotNull [] chunkHash) {
+        int start = Chunk.start(range);
+        int end = Chunk.end(range);
+        if (text == null || start > end || end > text.length()) {
+            return null;
+        }
+        var body = text.subSequence(start, end).toString();
+        return MessageDigest.isEqual(chunkHash, getChunkHash(body)) ? body : null;
+    }
+
+    /**
+     * The file's text as chunkify saw it: the open document, including unsaved changes, or else the file's
+     * contents with line separators normalized. With saved set, only the contents on disk of a file whose open
+     * document has unsaved changes, and null for any other file, whose current text is already its saved one.
+     */
+    private @Nullable CharSequence loadText(@NotNull String path, boolean saved) {
+        var file = LocalFileSystem.getInstance().findFileByPath(path);
+        if (file == null || !file.isValid() || file.isDirectory()) {
+            return null;
+        }
+        return ApplicationManager.getApplication().runReadAction((Computable<CharSequence>) () -> {
+            var documents = FileDocumentManager.getInstance();
+            var document = documents.getCachedDocument(file);
+            if (saved) {
+                return document != null && documents.isDocumentUnsaved(document) ? LoadTextUtil.loadText(file) : null;
+            }
+            return document != null ? document.getImmutableCharSequence() : LoadTextUtil.loadText(file);
+        });
+    }
+
+    /**
+     * The texts of the files one search or export reads chunks from, so that each is loaded at most once.
+     */
+    private static class FileTexts {
+        final Map<String, CharSequence> current = new HashMap<>();
+        final Map<String, CharSequence> saved = new HashMap<>();
+    }
+
+    /**
+     * Pins the current generation. Fails only if a compaction retires it between the read and the pin, so
+     * retrying picks up its replacement.
+     */
+    private @NotNull IndexGeneration pinGeneration() {
+        while (true) {
+            var generation = current;
+            if (generation.tryPin()) {
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Merges the delta graph into the on-disk base once {@link #shouldMerge} says so.
+     */
+    private void maybeMerge() {
+        try {
+            if (shouldMerge(current.graph)) {
+                save();
+            }
+        } catch (Throwable th) {
+            // an exception would cancel the periodic task
+            log.warn("Unable to merge the delta graph", th);
+        }
+    }
+
+    /**
+     * True once the delta graph is large relative to the base, so that the cost of rewriting the base is amortized
+     * over a geometric number of inserts, or when a bulk load is over and its deferred inserts wait for a merge.
+     */
+    private boolean shouldMerge(@NotNull LayeredGraphIndex graph) throws IOException {
+        if (graph.isBulkLoading()) {
+            // the scan merges once at the end; a cancelled one left its deferred inserts behind
+            return !scanning;
+        }
+        int threshold = Math.max(JVectorConfig.getGraphDeltaMergeSize(), graph.baseSize() / 4);
+        // deletions don't grow the delta, but they do grow the log that is replayed on open
+        return graph.deltaSize() >= threshold || graph.logSize() >= MAX_LOG_BYTES;
+    }
+
+    /**
+     * Compacts the index once deleted ordinals make up more than the configured share of the vector store.
+     */
+    private void maybeCompact() {
+        try {
+            var generation = current;
+            int size = generation.vectors.size();
+            if (size < MIN_COMPACTION_SIZE) {
+                return;
+            }
+            long deleted = size - generation.graph.liveCount();
+            if (deleted * 100 < (long) size * JVectorConfig.getCompactionDeletedPercent()) {
+                return;
+            }
+            debug("%s: compacting %d ordinals, %d deleted", projectName(), size, deleted);
+            compact();
+        } catch (Throwable th) {
+            // an exception would cancel the periodic task
+            log.warn("Unable to compact the index", th);
+        }
+    }
+
+    /**
+     * Reclaims deleted ordinals: writes a new generation holding only the live vectors, renumbered densely, with
+     * a graph rebuilt over them in parallel, then switches to it with a single MapDB commit of the new generation
+     * number and the remapped ordinalsByFile. A crash before that commit leaves the old generation in place and
+     * the partial one is deleted on the next start.
+     * <p>
+     * Updates wait on {@link #writeLock} while this runs. Searches do not: they keep using the old generation
+     * until the swap, and it is closed only once the searches that pinned it have finished. Closing the project
+     * cancels a compaction in progress, which is rolled back like a failed one.
+     */
+    public void compact() throws IOException {
+        synchronized (writeLock) {
+            if (closed || closing) {
+                return;
+            }
+            var old = current;
+            // a failed compaction rolls back to exactly this state
+            old.graph.sync();
+            db.commit();
+
+            IndexGeneration next;
+            try {
+                next = old.compact(db, cachePath, SIMILARITY, ordinalsByFile, () -> closing);
+                generationNumber.set(next.number);
+                db.commit();
+            } catch (CancellationException e) {
+                db.rollback();
+                debug("%s: compaction cancelled", projectName());
+                return;
+            } catch (IOException | RuntimeException e) {
+                db.rollback();
+                throw e;
+            }
+            replaceGeneration(old, next);
+        }
+    }
+
+    /**
+     * Switches updates and new searches to next, whose number has been committed. The replaced generation is
+     * closed once the searches that pinned it have finished. Called under {@link #writeLock}.
+     */
+    private void replaceGeneration(@NotNull IndexGeneration old, @NotNull IndexGeneration next) {
+        current = next;
+        dirty = false;
+        retired.add(old);
+        old.unpin();
+        scheduler.schedule(() -> retire(old), RETIRE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes and deletes a generation that compaction replaced, once no search is using it.
+     */
+    private void retire(@NotNull IndexGeneration generation) {
+        if (closed) {
+            return;
+        }
+        if (!generation.isUnpinned()) {
+            scheduler.schedule(() -> retire(generation), RETIRE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        synchronized (writeLock) {
+            if (closed || !retired.remove(generation)) {
+                // deleted on the next start instead
+                return;
+            }
+            try {
+                generation.close();
+                generation.delete();
+                db.commit();
+            } catch (Throwable th) {
+                log.warn("Unable to delete index generation " + generation.number, th);
+            }
+        }
+    }
 
-        // Get the hash's bytes
-        return digest.digest();
+    private boolean shouldCompress() {
+        switch (JVectorConfig.getSearchCompression()) {
+            case "none":
+                return false;
+            case "pq":
+                return true;
+            default:
+                var vectors = current.vectors;
+                long rawBytes = (long) vectors.size() * vectors.dimension() * Float.BYTES;
+                return rawBytes > JVectorConfig.getSearchMemoryBudgetBytes();
+        }
+    }
+
+    /**
+     * Switches searches back to full-precision vectors and deletes the saved PQ codes, which would be stale by the
+     * time compression is wanted again.
+     */
+    private void dropQuantizer() {
+        synchronized (writeLock) {
+            var generation = current;
+            generation.quantized = null;
+            try {
+                Files.deleteIfExists(generation.quantizedPath);
+            } catch (IOException e) {
+                log.warn("Unable to delete " + generation.quantizedPath, e);
+            }
+        }
+    }
+
+    /**
+     * (Re)trains the product quantizer when compression is wanted and the current codes are missing or have
+     * outgrown the memory budget. Training and bulk encoding run without the write lock; only the catch-up
+     * for vectors appended meanwhile and the swap are serialized with inserts.
+     */
+    private void maybeTrainQuantizer() {
+        var generation = current;
+        if (!shouldCompress()) {
+            dropQuantizer();
+            return;
+        }
+        long budget = JVectorConfig.getSearchMemoryBudgetBytes();
+        var pq = generation.quantized;
+        if (pq != null && pq.memorySize() <= budget + budget / 4) {
+            return;
+        }
+        var vectors = generation.vectors;
+        if (vectors.size() < QuantizedVectors.MIN_TRAINING_VECTORS) {
+            return;
+        }
+
+        debug("%s: training PQ for %d vectors", projectName(), vectors.size());
+        var trained = QuantizedVectors.train(vectors, SIMILARITY, budget);
+        synchronized (writeLock) {
+            if (generation != current) {
+                // compacted meanwhile; the next scan trains on the new generation if needed
+                return;
+            }
+            for (int i = trained.size(); i < vectors.size(); i++) {
+                trained.encode(i, vectors.vectorValue(i));
+            }
+            generation.quantized = trained;
+            dirty = true;
+        }
+        debug("%s: PQ trained with %d subspaces", projectName(), trained.getSubspaceCount());
     }
 
     /**
@@ -191,174 +1062,536 @@ public class JVectorFileListener implements AsyncFileListener, AutoCloseable {
         log.warn(message);
     }
 
+    /**
+     * Group commit: makes every change since the last commit durable. Vectors are flushed before the graph log
+     * records that reference them, and the graph log before the MapDB transaction that maps its ordinals to files,
+     * so a crash at any point leaves each layer referring only to data that survived.
+     */
+    private void commit() {
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            try {
+                current.graph.sync();
+                db.commit();
+            } catch (Throwable th) {
+                // an exception would cancel the periodic task
+                log.warn("Unable to commit index changes", th);
+            }
+        }
+    }
+
+    /**
+     * Checkpoint: syncs the graph log and the live bitset, saves the summaries and the PQ codes, then commits. The
+     * delta graph and pending deletions are merged into a new on-disk base (which empties the graph log) only
+     * when {@link #shouldMerge} says so, e.g. at the end of a scan that bulk loaded the graph.
+     */
     public void save() {
         if (!dirty) {
             return;
         }
 
         debug("%s: save()", projectName());
-        builder.cleanup();
-        var g = builder.getGraph();
-        try {
-            DataOutput out = new DataOutputStream(Files.newOutputStream(graphIndexPath));
-            g.save(out);
-            dirty = false;
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            try {
+                var generation = current;
+                if (shouldMerge(generation.graph)) {
+                    generation.graph.merge();
+                } else {
+                    generation.graph.checkpoint();
+                }
+                generation.saveSummaries();
+                var pq = generation.quantized;
+                if (pq != null) {
+                    pq.save(generation.quantizedPath);
+                }
+                db.commit();
+                dirty = false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
     }
 
-    private static class Chunk {
-        public final String body;
-        public final float[] embedding;
+    /**
+     * A file moving through the indexing pipeline: hashed and chunked first, embedded later.
+     */
+    private static class FileUpdate {
+        public final VirtualFile file;
+        // the generation whose ordinals reusedOrdinals refers to
+        public final int generation;
+        public final byte[] hash;
+        public final long[] stamp;
+        public final List<String> bodies;
+        // where each chunk lies in the file, see Chunk#range
+        public final long[] ranges;
+        public final List<byte[]> chunkHashes;
+        // ordinal that already holds each chunk's embedding, or -1 if the chunk is new or changed
+        public final int[] reusedOrdinals;
+        // filled in by computeEmbeddings for chunks that are not reused
+        public final float[][] embeddings;
 
-        private Chunk(String body, float[] embedding) {
-            this.body = body;
-            this.embedding = embedding;
+        private FileUpdate(VirtualFile file, int generation, byte[] hash, long[] stamp, List<String> bodies, long[] ranges, List<byte[]> chunkHashes, int[] reusedOrdinals) {
+            this.file = file;
+            this.generation = generation;
+            this.hash = hash;
+            this.stamp = stamp;
+            this.bodies = bodies;
+            this.ranges = ranges;
+            this.chunkHashes = chunkHashes;
+            this.reusedOrdinals = reusedOrdinals;
+            this.embeddings = new float[bodies.size()][];
         }
     }
 
-    private @NotNull List<Chunk> computeEmbeddings(VirtualFile file) {
-        var chunks = new ArrayList<Chunk>();
-        for (var body: chunkify(file)) {
-            var embedding = embeddingsProvider.getEmbedding(body);
-            chunks.add(new Chunk(body, embedding));
+    /**
+     * Embeds the file's new and changed chunks with a single batched provider call.
+     */
+    private @NotNull FileUpdate computeEmbeddings(@NotNull FileUpdate update) {
+        var indexes = new ArrayList<Integer>();
+        var bodies = new ArrayList<String>();
+        for (int i = 0; i < update.bodies.size(); i++) {
+            if (update.reusedOrdinals[i] < 0) {
+                indexes.add(i);
+                bodies.add(update.bodies.get(i));
+            }
+        }
+        if (bodies.isEmpty()) {
+            return update;
         }
-        return chunks;
+        var embeddings = embeddingsProvider.getEmbeddings(bodies);
+        for (int i = 0; i < bodies.size(); i++) {
+            update.embeddings[indexes.get(i)] = embeddings.get(i);
+        }
+        return update;
     }
 
     /**
-     * Extracts all method bodies from a given Java file.
-     *
-     * @param file The virtual file to process, expected to be a Java file.
-     * @return A list of strings, each representing the body of a method.
+     * Splits the file into chunks with the configured {@link Chunker}. Returns no chunks if the file has no PSI,
+     * e.g. because it was deleted since it was queued.
      */
-    private Set<String> chunkify(@NotNull VirtualFile file) {
-        var chunks = ConcurrentHashMap.<String>newKeySet();
-        ApplicationManager.getApplication().runReadAction(() -> {
+    private @NotNull List<Chunk> chunkify(@NotNull VirtualFile file) {
+        return ApplicationManager.getApplication().runReadAction((Computable<List<Chunk>>) () -> {
             PsiFile pf = PsiManager.getInstance(project).findFile(file);
-            assert pf instanceof PsiJavaFile : pf;
-            PsiJavaFile javaFile = (PsiJavaFile) pf;
-            for (var psiClass : javaFile.getClasses()) {
-                for (var method : psiClass.getMethods()) {
-                    var methodBody = method.getBody();
-                    if (methodBody == null) {
-                        // interface or abstract method
-                        continue;
-                    }
-                    String methodText = methodBody.getText();
-                    chunks.addAll(chunkMethod(methodText));
-                }
-            }
+            return pf == null ? List.of() : chunker.chunk(pf);
         });
+    }
 
-        // write the chunks to a file for debugging
-        Path path = Paths.get("/tmp").resolve(file.getName() + ".chunks");
-        try {
-            Files.write(path, chunks);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    /**
+     * Adds one chunk to the index and returns its ordinal. The caller records the ordinal in ordinalsByFile.
+     */
+    private int createEmbedding(@NotNull String path, long range, byte @NotNull [] chunkHash, float @NotNull [] embedding) {
+        var generation = current;
+        int ordinal = generation.vectors.append(embedding);
+        var pq = generation.quantized;
+        if (pq != null) {
+            // searches score graph nodes by their codes, so encode before the node becomes reachable
+            pq.encode(ordinal, embedding);
         }
+        generation.graph.add(ordinal);
+        generation.chunkRangesByOrdinal.put(ordinal, range);
+        generation.filesByOrdinal.put(ordinal, path);
+        generation.filters.add(path, ordinal);
+        generation.addSummary(path, ordinal, embedding);
+        generation.chunkHashesByOrdinal.put(ordinal, chunkHash);
+        return ordinal;
+    }
 
-        return chunks;
+    /**
+     * Removes one chunk from searches. Its vector stays in the store until the index is compacted.
+     */
+    private void removeEmbedding(int ordinal) {
+        var generation = current;
+        generation.graph.markDeleted(ordinal);
+        generation.graph.unhide(ordinal);
+        generation.parkedBranchByOrdinal.remove(ordinal);
+        generation.removeText(ordinal);
+        var path = generation.filesByOrdinal.remove(ordinal);
+        if (path != null) {
+            generation.filters.remove(path, ordinal);
+            if (ordinal < generation.vectors.size()) {
+                generation.removeSummary(path, ordinal, generation.vectors.vectorValue(ordinal));
+            }
+        }
+        generation.chunkHashesByOrdinal.remove(ordinal);
     }
 
-    private List<String> chunkMethod(String methodText) {
-        // TODO refine the estimate of token count by actually looking at some examples
-        // the generic guideline of 1 token per 4 English characters will probably undercount for code
-        // so we use 1:1 which may well be too conservative
-        var chunkLength = 8192;
-        var chunks = new ArrayList<String>();
-        for (int i = 0; i < methodText.length(); i += chunkLength) {
-            chunks.add(methodText.substring(i, Math.min(i + chunkLength, methodText.length())));
+    /**
+     * Parks the chunks of the version of path that is indexed now, so that checking out its branch again finds them.
+     */
+    private void removeEmbeddings(@NotNull String path) {
+        var ordinals = ordinalsByFile.get(path);
+        if (ordinals == null) {
+            return;
+        }
+
+        var replaced = new ArrayList<Integer>(ordinals.length);
+        for (var ordinal : ordinals) {
+            replaced.add(ordinal);
         }
-        return chunks;
+        parkEmbeddings(path, replaced);
     }
 
-    private void createEmbeddings(@NotNull VirtualFile file) {
-        var chunks = computeEmbeddings(file);
-        var ordinals = new int[chunks.size()];
-        // add each chunk to the index
-        for (int i = 0; i < chunks.size(); i++) {
-            var chunk = chunks.get(i);
-            int ordinal = vectors.size();
-            vectors.add(chunk.embedding);
-            builder.addGraphNode(ordinal, ravv);
-            chunksByOrdinal.put(ordinal, chunk.body);
-            ordinals[i] = ordinal;
+    /**
+     * Hides chunks that path no longer has, tagged with the branch they were indexed on, in place of the chunks
+     * parked earlier on the same branch. Deletes them outright if parking is disabled.
+     */
+    private void parkEmbeddings(@NotNull String path, @NotNull List<Integer> ordinals) {
+        if (ordinals.isEmpty()) {
+            return;
+        }
+        if (!branches.isEnabled()) {
+            for (var ordinal : ordinals) {
+                removeEmbedding(ordinal);
+            }
+            return;
+        }
+        var generation = current;
+        var branch = branchByFile.getOrDefault(path, branches.head());
+        for (var ordinal : generation.parked.park(path, branch, ordinals)) {
+            removeEmbedding(ordinal);
+        }
+        for (var ordinal : ordinals) {
+            generation.graph.hide(ordinal);
+            generation.filters.remove(path, ordinal);
+            if (ordinal < generation.vectors.size()) {
+                generation.removeSummary(path, ordinal, generation.vectors.vectorValue(ordinal));
+            }
         }
-        // update the ordinalsByFile map
-        ordinalsByFile.put(file.getPath(), ordinals);
     }
 
-    private void removeEmbeddings(@NotNull VirtualFile file) {
-        var ordinals = ordinalsByFile.get(file.getPath());
-        if (ordinals == null) {
+    /**
+     * Shows a parked chunk of path again. Returns false if ordinal is not parked for path.
+     */
+    private boolean unparkEmbedding(@NotNull String path, int ordinal) {
+        var generation = current;
+        if (!generation.parked.unpark(path, ordinal)) {
+            return false;
+        }
+        generation.graph.unhide(ordinal);
+        generation.filters.add(path, ordinal);
+        if (ordinal < generation.vectors.size()) {
+            generation.addSummary(path, ordinal, generation.vectors.vectorValue(ordinal));
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the chunks parked on branches that are no longer retained.
+     */
+    private void deleteParked(@NotNull List<String> evicted) {
+        if (evicted.isEmpty()) {
             return;
         }
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            var deleted = current.parked.evict(new HashSet<>(evicted));
+            for (var ordinal : deleted) {
+                removeEmbedding(ordinal);
+            }
+            dirty = true;
+            debug("%s: deleted %d chunks parked on branches %s", projectName(), deleted.size(), evicted);
+        }
+    }
 
-        for (var node: ordinals) {
-            builder.markNodeDeleted(node);
+    /**
+     * Runs on the scheduler after a checkout. The files that differ are re-indexed through their own VFS events;
+     * here only the list of recent branches moves.
+     */
+    private void onHeadChanged() {
+        try {
+            deleteParked(branches.refresh());
+            commit();
+        } catch (Throwable th) {
+            // an exception would be swallowed by the scheduler
+            log.warn("Unable to update the checked-out branch", th);
         }
     }
 
     /**
-     * Turn a list of VFileEvents into a ChangeApplier that updates the graph index and ordinalsByFile map.
+     * Turn a list of VFileEvents into a ChangeApplier that queues the affected paths for {@link #drainPendingChanges}.
+     * This runs inside the VFS write action, so it only records paths; hashing, chunking and embedding happen on
+     * the background worker.
      */
     @Override
     public ChangeApplier prepareChange(@NotNull List<? extends @NotNull VFileEvent> list) {
-        var projectIndex = ProjectRootManager.getInstance(project).getFileIndex();
         return new ChangeApplier() {
             @Override
             public void afterVfsChange() {
                 for (var event: list) {
-                    if (event.getFile() == null
-                        || !shouldIndex(event.getFile()) // TODO support non-Java code
-                        || !projectIndex.isInContent(event.getFile()))
-                    {
+                    if (branches.isHeadFile(event.getPath())) {
+                        if (!closed) {
+                            scheduler.execute(JVectorFileListener.this::onHeadChanged);
+                        }
                         continue;
                     }
+                    scope.invalidate(event.getPath());
+                    if (event instanceof VFileMoveEvent) {
+                        var me = (VFileMoveEvent) event;
+                        enqueueMove(me.getOldPath(), me.getNewPath(), me.getFile().isDirectory());
+                    } else if (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename()) {
+                        var pe = (VFilePropertyChangeEvent) event;
+                        enqueueMove(pe.getOldPath(), pe.getNewPath(), pe.getFile().isDirectory());
+                    } else if (event instanceof VFileDeleteEvent) {
+                        // the file is already gone, so match against what we have indexed rather than the project index
+                        for (var path : indexedPathsUnder(event.getPath(), event.getFile().isDirectory())) {
+                            enqueue(path, null);
+                        }
+                    } else if (event instanceof VFileContentChangeEvent || event instanceof VFileCreateEvent) {
+                        // we do not have to handle copies, since a create event is triggered for the new file
+                        var file = event.getFile();
+                        if (file == null || file.isDirectory()) {
+                            continue;
+                        }
+                        // an indexed file that is now out of scope is queued too, to be removed
+                        if (!ordinalsByFile.containsKey(file.getPath()) && !scope.acceptsChanged(file)) {
+                            continue;
+                        }
+                        enqueue(file.getPath(), null);
+                    }
+                }
+            }
+        };
+    }
 
-                    if (event instanceof VFileContentChangeEvent) {
-                        debug("%s: contentsChanged(%s)", projectName(), event.getFile().getPath());
-                        if (maybeUpdateFile(event.getFile())) {
-                            dirty = true;
+    /**
+     * Queues a rename or move of a file or directory; indexed files keep their embeddings under the new path.
+     */
+    private void enqueueMove(@NotNull String oldPath, @NotNull String newPath, boolean directory) {
+        var oldPaths = indexedPathsUnder(oldPath, directory);
+        synchronized (pendingChanges) {
+            // files that are queued but not yet indexed move too
+            for (var path : pendingChanges.keySet()) {
+                if (isUnder(path, oldPath) && !oldPaths.contains(path)) {
+                    oldPaths.add(path);
+                }
+            }
+        }
+        for (var path : oldPaths) {
+            enqueue(newPath + path.substring(oldPath.length()), path);
+        }
+        if (oldPaths.isEmpty() && shouldIndex(newPath)) {
+            // moved into the project from outside, or never indexed
+            enqueue(newPath, null);
+        }
+    }
+
+    /**
+     * Records that path needs to be reconciled with the file system, coalescing with any change already queued
+     * for it. A queued move is carried along, so moving a file twice before the worker runs is still one rename.
+     */
+    private void enqueue(@NotNull String path, @Nullable String movedFrom) {
+        synchronized (pendingChanges) {
+            if (closed) {
+                // the MapDB maps are closed
+                return;
+            }
+            if (movedFrom != null) {
+                persistedChanges.remove(movedFrom);
+                var previous = pendingChanges.remove(movedFrom);
+                if (previous != null && previous.movedFrom != null) {
+                    movedFrom = previous.movedFrom;
+                }
+            }
+            var previous = pendingChanges.remove(path);
+            if (movedFrom == null && previous != null) {
+                movedFrom = previous.movedFrom;
+            }
+            // re-inserting moves the path to the back of the queue, so it is debounced from its latest change
+            pendingChanges.put(path, new PendingChange(path, movedFrom, System.nanoTime()));
+            persistedChanges.put(path, movedFrom == null ? "" : movedFrom);
+        }
+    }
+
+    private static boolean isRetryable(@NotNull Throwable th) {
+        for (var cause = th; cause != null; cause = cause.getCause()) {
+            if (cause instanceof EmbeddingScheduler.RetryableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indexed files at path, or under it if path is a directory.
+     */
+    private @NotNull List<String> indexedPathsUnder(@NotNull String path, boolean directory) {
+        var paths = new ArrayList<String>();
+        if (!directory) {
+            if (ordinalsByFile.containsKey(path)) {
+                paths.add(path);
+            }
+            return paths;
+        }
+        for (var indexed : ordinalsByFile.keySet()) {
+            if (isUnder(indexed, path)) {
+                paths.add(indexed);
+            }
+        }
+        return paths;
+    }
+
+    private static boolean isUnder(@NotNull String path, @NotNull String parent) {
+        return path.equals(parent) || path.startsWith(parent) && path.charAt(parent.length()) == '/';
+    }
+
+    /**
+     * Applies queued changes whose last event is older than the debounce interval, in batches of
+     * {@link #batchSize} files with one MapDB commit per batch. Runs on the scheduler.
+     */
+    private void drainPendingChanges() {
+        try {
+            while (!closed) {
+                var batch = new ArrayList<PendingChange>();
+                synchronized (pendingChanges) {
+                    var it = pendingChanges.values().iterator();
+                    while (it.hasNext() && batch.size() < batchSize) {
+                        var change = it.next();
+                        if (System.nanoTime() - change.enqueuedNanos < debounceNanos) {
+                            // insertion order is event order, so everything after this is newer still
+                            break;
                         }
-                    } else if (event instanceof VFileMoveEvent) {
-                        var me = (VFileMoveEvent) event;
-                        debug("%s: fileDeleted(%s -> %s)",
-                              projectName(),
-                              me.getOldParent().getPath(),
-                              me.getNewParent().getPath());
-                        // we don't have to update the graph index, just the ordinalsByFile map
-                        for (var entry : ordinalsByFile.entrySet()) {
-                            if (!entry.getKey().equals(me.getOldParent().getPath())) {
-                                continue;
-                            }
+                        it.remove();
+                        // removed from the disk only by the commit that follows the batch
+                        persistedChanges.remove(change.path);
+                        batch.add(change);
+                    }
+                }
+                if (batch.isEmpty()) {
+                    return;
+                }
 
-                            var newPath = me.getNewParent().getPath();
-                            ordinalsByFile.put(newPath, entry.getValue());
-                            ordinalsByFile.remove(entry.getKey());
+                debug("%s: applying %d queued changes", projectName(), batch.size());
+                for (var change : batch) {
+                    try {
+                        applyPendingChange(change);
+                    } catch (ProcessCanceledException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        log.warn("Unable to update the index for " + change.path, e);
+                        if (isRetryable(e)) {
+                            // the scheduler has backed off already; try again after the next debounce
+                            enqueue(change.path, null);
                         }
-                        dirty = true;
-                    } else if (event instanceof VFileDeleteEvent) {
-                        debug("%s: fileDeleted(%s)", projectName(), event.getFile().getPath());
-                        removeEmbeddings(event.getFile());
-                        dirty = true;
-                    } else if (event instanceof VFileCreateEvent) {
-                        debug("%s: fileCreated(%s)", projectName(), event.getFile().getPath());
-                        createEmbeddings(event.getFile());
-                        dirty = true;
                     }
-                    db.commit();
-                    // we do not have to implement fileCopied, since a fileCreated event is triggered for the new file
                 }
+                commit();
             }
-        };
+        } catch (Throwable th) {
+            // an exception would cancel the periodic task
+            log.warn("Unable to apply queued changes", th);
+        }
+    }
+
+    private void applyPendingChange(@NotNull PendingChange change) {
+        if (change.movedFrom != null) {
+            synchronized (writeLock) {
+                if (closed) {
+                    return;
+                }
+                renameEmbeddings(change.movedFrom, change.path);
+            }
+        }
+        var file = LocalFileSystem.getInstance().findFileByPath(change.path);
+        if (file == null || !file.isValid() || file.isDirectory() || !scope.acceptsChanged(file)) {
+            synchronized (writeLock) {
+                if (closed) {
+                    return;
+                }
+                removeEmbeddings(change.path);
+                ordinalsByFile.remove(change.path);
+                branchByFile.remove(change.path);
+                fileContentHashes.remove(change.path);
+                fileStamps.remove(change.path);
+                dirty = true;
+            }
+            return;
+        }
+        // unchanged content (e.g. after a rename) is skipped by the hash check
+        maybeUpdateFile(file);
+    }
+
+    /**
+     * Moves a file's embeddings, including its parked versions, to a new path; the graph is unaffected.
+     */
+    private void renameEmbeddings(@NotNull String oldPath, @NotNull String newPath) {
+        var ordinals = ordinalsByFile.remove(oldPath);
+        var hash = fileContentHashes.remove(oldPath);
+        var stamp = fileStamps.remove(oldPath);
+        var branch = branchByFile.remove(oldPath);
+        var generation = current;
+        if (ordinals == null) {
+            renameParked(oldPath, newPath);
+            return;
+        }
+        removeEmbeddings(newPath);
+        // after the chunks newPath had are parked, so that they don't replace the moved ones of the same branch
+        renameParked(oldPath, newPath);
+        ordinalsByFile.put(newPath, ordinals);
+        for (var ordinal : ordinals) {
+            var previous = generation.filesByOrdinal.put(ordinal, newPath);
+            if (previous != null) {
+                generation.filters.remove(previous, ordinal);
+            }
+            generation.filters.add(newPath, ordinal);
+            if (ordinal < generation.vectors.size()) {
+                var vector = generation.vectors.vectorValue(ordinal);
+                if (previous != null) {
+                    generation.removeSummary(previous, ordinal, vector);
+                }
+                generation.addSummary(newPath, ordinal, vector);
+            }
+        }
+        if (hash != null) {
+            fileContentHashes.put(newPath, hash);
+        }
+        if (branch != null) {
+            branchByFile.put(newPath, branch);
+        }
+        if (stamp != null) {
+            // a rename keeps the timestamp, so the moved file is recognized as unchanged without hashing it
+            fileStamps.put(newPath, stamp);
+        }
+        dirty = true;
     }
 
-    private static boolean shouldIndex(@Nullable VirtualFile file) {
-        return file.getPath().endsWith(".java");
+    /**
+     * Moves the parked versions of a file to its new path, so that checking out a branch on which the file has its
+     * new path finds them.
+     */
+    private void renameParked(@NotNull String oldPath, @NotNull String newPath) {
+        var generation = current;
+        for (var ordinal : generation.parked.move(oldPath, newPath)) {
+            generation.filesByOrdinal.put(ordinal, newPath);
+            dirty = true;
+        }
+    }
+
+    /**
+     * A path waiting to be reconciled with the file system: re-indexed if the file exists, removed otherwise.
+     */
+    private static class PendingChange {
+        public final String path;
+        // set if the file's existing embeddings should be carried over from this path first
+        public final String movedFrom;
+        public final long enqueuedNanos;
+
+        private PendingChange(String path, @Nullable String movedFrom, long enqueuedNanos) {
+            this.path = path;
+            this.movedFrom = movedFrom;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private boolean shouldIndex(@NotNull String path) {
+        int dot = path.lastIndexOf('.');
+        return dot > path.lastIndexOf('/') && indexedExtensions.contains(path.substring(dot + 1));
     }
 
     @NotNull
@@ -369,8 +1602,30 @@ public class JVectorFileListener implements AsyncFileListener, AutoCloseable {
     @Override
     public void close() {
         debug("%s: close()", projectName());
-        save();
-        db.close();
         scheduler.shutdown();
+        closing = true;
+        synchronized (writeLock) {
+            if (closed) {
+                // the project service is disposed both by projectClosed and by the platform
+                return;
+            }
+            save();
+            synchronized (pendingChanges) {
+                // queued changes are picked up again on the next start
+                db.commit();
+                closed = true;
+            }
+            db.close();
+            try {
+                current.close();
+                // their files are deleted on the next start
+                for (var generation : retired) {
+                    generation.close();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        embeddingsProvider.close();
     }
 }
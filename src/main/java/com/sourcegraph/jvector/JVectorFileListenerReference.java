@@ -7,9 +7,11 @@ import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFileManager;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class JVectorFileListenerReference implements Disposable {
     private volatile JVectorFileListener listener;
+    private volatile ProgressIndicator initializationIndicator;
 
     public JVectorFileListenerReference() {
     }
@@ -19,17 +21,35 @@ public class JVectorFileListenerReference implements Disposable {
         ProgressManager.getInstance().run(new Task.Backgroundable(project, "Initializing JVector", true) {
             @Override
             public void run(@NotNull ProgressIndicator indicator) {
-                indicator.setIndeterminate(true); // TODO refactor so we can give actual progress
+                initializationIndicator = indicator;
+                indicator.setIndeterminate(true);
+                indicator.setText("Opening index");
                 listener = new JVectorFileListener(project);
                 // TODO not sure if this is an appropriate Disposable
                 VirtualFileManager.getInstance().addAsyncFileListener(listener, JVectorFileListenerReference.this);
-                listener.scanExistingFiles();
+                listener.scanExistingFiles(indicator);
+            }
+
+            @Override
+            public void onFinished() {
+                initializationIndicator = null;
             }
         });
     }
 
+    /**
+     * The project's listener, or null until its index has been opened.
+     */
+    public @Nullable JVectorFileListener getListener() {
+        return listener;
+    }
+
     @Override
     public void dispose() {
+        var indicator = initializationIndicator;
+        if (indicator != null) {
+            indicator.cancel();
+        }
         if (listener != null) {
             listener.close();
         }
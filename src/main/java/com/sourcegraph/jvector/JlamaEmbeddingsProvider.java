@@ -0,0 +1,96 @@
+package com.sourcegraph.jvector;
+
+import com.github.tjake.jlama.model.AbstractModel;
+import com.github.tjake.jlama.safetensors.DType;
+import com.intellij.openapi.diagnostic.Logger;
+import io.github.jbellis.jvector.vector.VectorUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Computes embeddings in-process with a Jlama model, so indexing works without network access.
+ * <p>
+ * Jlama memory-maps the safetensors weights, so the model costs address space rather than heap.
+ * Batches are embedded concurrently on a dedicated pool of {@link JVectorConfig#getJlamaThreads()} threads.
+ */
+public class JlamaEmbeddingsProvider implements EmbeddingsProvider {
+    private static final Logger log = Logger.getInstance(JlamaEmbeddingsProvider.class);
+
+    private final AbstractModel model;
+    private final String modelName;
+    private final ForkJoinPool pool;
+    private final int maxTokens;
+    private final int dimension;
+
+    public JlamaEmbeddingsProvider(@NotNull File modelPath) {
+        if (!modelPath.isDirectory()) {
+            throw new IllegalStateException("Jlama embedding model not found at " + modelPath
+                                            + "; set cody.codelocal.jlama.modelPath to a local safetensors model directory");
+        }
+        var threads = JVectorConfig.getJlamaThreads();
+        model = AbstractModel.load(modelPath, threads, DType.F32, DType.I8);
+        modelName = modelPath.getName();
+        pool = new ForkJoinPool(threads);
+        maxTokens = JVectorConfig.getJlamaMaxTokens();
+        // the model config is not part of Jlama's public surface, so probe for the output width
+        dimension = model.embed("").length;
+        log.info(String.format("Loaded Jlama embedding model %s (dimension %d)", modelPath, dimension));
+    }
+
+    @Override
+    public float[] getEmbedding(String body) {
+        // DOT_PRODUCT similarity in the graph assumes unit vectors
+        return VectorUtil.l2normalize(model.embed(truncate(body)));
+    }
+
+    @Override
+    public List<float[]> getEmbeddings(List<String> bodies) {
+        return pool.submit(() -> bodies.parallelStream()
+                        .map(this::getEmbedding)
+                        .collect(Collectors.toList()))
+                .join();
+    }
+
+    @Override
+    public int countTokens(String text) {
+        return model.getTokenizer().encode(text).length;
+    }
+
+    @Override
+    public int maxInputTokens() {
+        return maxTokens;
+    }
+
+    @Override
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * Inputs are truncated to maxTokens, so the context length is part of what determines a vector.
+     */
+    @Override
+    public String modelId() {
+        return String.format("jlama:%s:%d", modelName, maxTokens);
+    }
+
+    /**
+     * Trims the input to the model's context length; encoder models fail outright on longer inputs.
+     */
+    private @NotNull String truncate(@NotNull String body) {
+        int tokens = countTokens(body);
+        if (tokens <= maxTokens) {
+            return body;
+        }
+        return body.substring(0, (int) ((long) body.length() * maxTokens / tokens));
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,630 @@
+package com.sourcegraph.jvector;
+
+import com.intellij.openapi.diagnostic.Logger;
+import io.github.jbellis.jvector.disk.SimpleMappedReader;
+import io.github.jbellis.jvector.graph.GraphIndex;
+import io.github.jbellis.jvector.graph.GraphIndexBuilder;
+import io.github.jbellis.jvector.graph.GraphSearcher;
+import io.github.jbellis.jvector.graph.NeighborSimilarity;
+import io.github.jbellis.jvector.graph.OnHeapGraphIndex;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.util.FixedBitSet;
+import io.github.jbellis.jvector.vector.VectorEncoding;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * A graph index made of a read-only base layer served from a memory-mapped {@link MappedGraph} and a small
+ * in-memory delta layer that receives new inserts. Searches query both layers and merge the results.
+ * <p>
+ * The base layer covers every ordinal below its size, including ordinals that were deleted or never inserted;
+ * those are written as nodes without edges and are never reached. Ordinals are therefore the same in both layers
+ * and in the {@link MappedVectorStore}, and no renumbering is needed. Deletions are tracked in a live-ordinal
+ * bitset that filters searches until the next {@link #merge} physically drops them.
+ * <p>
+ * Hidden ordinals stay in the graph but are excluded from search results, so they can be shown again without
+ * touching the graph. Unlike deletions they are not persisted; the owner hides them again after opening.
+ * <p>
+ * Every add and delete is also appended to a {@link GraphLog}; {@link #sync} makes them durable in one group
+ * commit. A merge is the snapshot: the base layer and the live bitset are each written to a temp file and renamed
+ * into place, and only then is the log emptied. Opening the index loads the last snapshot and replays the log.
+ * <p>
+ * Mutations (add, delete, sync, merge) are serialized on the index: there is a single writer at a time. Searches
+ * take no lock. A search pins the current {@link Layers}, the base and delta that one merge produced, so it never
+ * pairs a base with a delta from another merge, and the base's mapped file stays open until the last search that
+ * pinned it is done. Deletions reach searches through the live bitset, which is read without a snapshot: a search
+ * racing a delete may still return the deleted ordinal, never one that was not inserted.
+ */
+public class LayeredGraphIndex implements AutoCloseable {
+    private static final Logger log = Logger.getInstance(LayeredGraphIndex.class);
+
+    private static final int MAX_DEGREE = 16;
+    private static final int BEAM_WIDTH = 100;
+    private static final float NEIGHBOR_OVERFLOW = 1.2f;
+    private static final float ALPHA = 1.2f;
+    // below this many members a filter is searched exhaustively; about as many scores as a graph search computes
+    private static final int EXACT_SEARCH_LIMIT = 2048;
+
+    private final MappedVectorStore vectors;
+    private final VectorSimilarityFunction similarity;
+    // MappedGraph format: mapped for searching, and loaded into a builder when merging
+    private final Path basePath;
+    // builder format without a header, as written by older versions; only read by the first merge
+    private final Path legacyBasePath;
+    // live bitset as of the last merge
+    private final Path livePath;
+    private final GraphLog mutationLog;
+
+    private volatile Layers layers;
+    private volatile int deltaSize;
+    // ordinals from here on are recorded as live but only inserted into the graph by the next merge
+    private volatile int bulkLoadFrom = Integer.MAX_VALUE;
+    // replaced (never resized in place) when it needs to grow, so readers can hold on to a reference
+    private volatile FixedBitSet live = new FixedBitSet(1024);
+    // live but excluded from results; replaced like live
+    private volatile FixedBitSet hidden = new FixedBitSet(1024);
+
+    /**
+     * Opens the index stored in directory: the last snapshot, then the mutations logged since. Live ordinals that
+     * are not covered by the base layer are re-inserted into the delta layer.
+     * <p>
+     * Indexes written before the live bitset was persisted take their live ordinals from legacyLiveOrdinals, and
+     * an index written as a builder graph only is merged once to produce the base layer.
+     */
+    public LayeredGraphIndex(@NotNull MappedVectorStore vectors,
+                             @NotNull VectorSimilarityFunction similarity,
+                             @NotNull Path directory,
+                             @NotNull Iterable<int[]> legacyLiveOrdinals) throws IOException
+    {
+        this.vectors = vectors;
+        this.similarity = similarity;
+        this.basePath = directory.resolve("graph.bin");
+        this.legacyBasePath = directory.resolve("jvector.db");
+        this.livePath = directory.resolve("live.bin");
+        layers = new Layers(null, newBuilder());
+
+        if (Files.exists(livePath)) {
+            live = readLive(livePath);
+        } else {
+            for (var ordinals : legacyLiveOrdinals) {
+                for (var ordinal : ordinals) {
+                    if (ordinal < vectors.size()) {
+                        setLive(ordinal);
+                    }
+                }
+            }
+        }
+        mutationLog = new GraphLog(directory.resolve("graph.log"));
+        // ordinals whose vectors did not reach the disk before a crash are skipped
+        mutationLog.replay(ordinal -> {
+            if (ordinal < vectors.size()) {
+                setLive(ordinal);
+            }
+        }, this::clearLive);
+
+        var base = MappedGraph.open(basePath, vectors);
+        if (base != null) {
+            layers = new Layers(base, newBuilder());
+        } else if (Files.exists(legacyBasePath)) {
+            merge();
+            return;
+        }
+
+        var restored = liveOrdinalsFrom(baseSize());
+        insertAll(layers.delta, restored);
+        deltaSize += restored.length;
+        if (restored.length > 0) {
+            log.info(String.format("Re-inserted %d ordinals missing from the on-disk graph", restored.length));
+        }
+    }
+
+    private @NotNull GraphIndexBuilder<float[]> newBuilder() {
+        return new GraphIndexBuilder<>(vectors, VectorEncoding.FLOAT32, similarity, MAX_DEGREE, BEAM_WIDTH, NEIGHBOR_OVERFLOW, ALPHA);
+    }
+
+    /**
+     * Number of ordinals covered by the on-disk base layer.
+     */
+    public int baseSize() {
+        var b = layers.base;
+        return b == null ? 0 : b.size();
+    }
+
+    /**
+     * Number of live ordinals.
+     */
+    public int liveCount() {
+        return live.cardinality();
+    }
+
+    public int deltaSize() {
+        return deltaSize;
+    }
+
+    /**
+     * Starts a bulk load: ordinals added from now on skip the delta layer, and so are not searchable, until the
+     * next {@link #merge} inserts all of them in parallel. Inserting one node at a time costs a graph search per
+     * node on the writer thread, so building a first-time index this way is several times faster on a multicore
+     * machine.
+     */
+    public synchronized void beginBulkLoad() {
+        bulkLoadFrom = Math.min(bulkLoadFrom, vectors.size());
+    }
+
+    /**
+     * True between {@link #beginBulkLoad} and the merge that ends it.
+     */
+    public boolean isBulkLoading() {
+        return bulkLoadFrom != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Inserts an ordinal whose vector is already in the vector store.
+     */
+    public synchronized void add(int ordinal) {
+        if (ordinal < bulkLoadFrom) {
+            layers.delta.addGraphNode(ordinal, vectors);
+            deltaSize++;
+        }
+        setLive(ordinal);
+        appendToLog(GraphLog.ADD, ordinal);
+    }
+
+    public synchronized void markDeleted(int ordinal) {
+        clearLive(ordinal);
+        appendToLog(GraphLog.DELETE, ordinal);
+    }
+
+    private void appendToLog(byte op, int ordinal) {
+        try {
+            mutationLog.append(op, ordinal);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Group commit: makes every add and delete so far durable, along with the vectors they reference.
+     */
+    public synchronized void sync() throws IOException {
+        vectors.flush();
+        mutationLog.sync();
+    }
+
+    /**
+     * {@link #sync}, and rewrites the live bitset so that opening the index replays the log over a recent one.
+     * The log itself is only emptied by a merge.
+     */
+    public synchronized void checkpoint() throws IOException {
+        sync();
+        var liveSnapshot = live;
+        writeAtomically(livePath, out -> writeLive(liveSnapshot, out));
+    }
+
+    /**
+     * Bytes of mutations logged since the last merge.
+     */
+    public long logSize() throws IOException {
+        return mutationLog.size();
+    }
+
+    private void clearLive(int ordinal) {
+        var bits = live;
+        if (ordinal < bits.length()) {
+            bits.clear(ordinal);
+        }
+    }
+
+    public boolean isLive(int ordinal) {
+        var bits = live;
+        return ordinal < bits.length() && bits.get(ordinal);
+    }
+
+    /**
+     * Excludes a live ordinal from search results while keeping it in the graph.
+     */
+    public synchronized void hide(int ordinal) {
+        var bits = hidden;
+        if (ordinal >= bits.length()) {
+            bits = FixedBitSet.ensureCapacity(bits, ordinal);
+            hidden = bits;
+        }
+        bits.set(ordinal);
+    }
+
+    public synchronized void unhide(int ordinal) {
+        var bits = hidden;
+        if (ordinal < bits.length()) {
+            bits.clear(ordinal);
+        }
+    }
+
+    /**
+     * True if the ordinal is live and not hidden, i.e. may appear in search results.
+     */
+    public boolean isVisible(int ordinal) {
+        return isVisible(live, hidden, ordinal);
+    }
+
+    private static boolean isVisible(@NotNull FixedBitSet liveOrds, @NotNull FixedBitSet hiddenOrds, int ordinal) {
+        return ordinal < liveOrds.length() && liveOrds.get(ordinal)
+               && (ordinal >= hiddenOrds.length() || !hiddenOrds.get(ordinal));
+    }
+
+    private void setLive(int ordinal) {
+        var bits = live;
+        if (ordinal >= bits.length()) {
+            bits = FixedBitSet.ensureCapacity(bits, ordinal);
+            live = bits;
+        }
+        bits.set(ordinal);
+    }
+
+    /**
+     * Live ordinals at or above from, in ascending order.
+     */
+    private int @NotNull [] liveOrdinalsFrom(int from) {
+        var bits = live;
+        return IntStream.range(Math.min(from, bits.length()), Math.min(bits.length(), vectors.size()))
+                .filter(bits::get)
+                .toArray();
+    }
+
+    /**
+     * Inserts ordinals into builder on a pool with a thread per core; the builder supports concurrent inserts.
+     */
+    private void insertAll(@NotNull GraphIndexBuilder<float[]> builder, int @NotNull [] ordinals) {
+        insertAll(builder, ordinals, () -> false);
+    }
+
+    /**
+     * Like {@link #insertAll(GraphIndexBuilder, int[])}, but stops inserting once cancelled returns true and then
+     * throws a CancellationException.
+     */
+    private void insertAll(@NotNull GraphIndexBuilder<float[]> builder,
+                           int @NotNull [] ordinals,
+                           @NotNull BooleanSupplier cancelled)
+    {
+        if (ordinals.length == 0) {
+            return;
+        }
+        var pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.submit(() -> Arrays.stream(ordinals).parallel().forEach(node -> {
+                if (!cancelled.getAsBoolean()) {
+                    builder.addGraphNode(node, vectors);
+                }
+            })).join();
+        } finally {
+            pool.shutdown();
+        }
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("Graph build cancelled");
+        }
+    }
+
+    /**
+     * Returns the topK nearest live ordinals. With PQ codes available, candidates are scored by their codes and
+     * reranked against full-precision vectors; otherwise every candidate is scored exactly.
+     * <p>
+     * A filter restricts results to its members during graph traversal, so a restricted search returns topK
+     * results without over-fetching. Graph search stops paying off when few nodes pass the filter, because most
+     * of the nodes it visits are rejected, so a filter with few members is searched by scoring every member.
+     */
+    public @NotNull SearchResult search(float @NotNull [] query,
+                                        int topK,
+                                        @Nullable QuantizedVectors quantized,
+                                        int overquery,
+                                        @Nullable FixedBitSet filter)
+    {
+        var liveOrds = live;
+        var hiddenOrds = hidden;
+        if (filter != null && filter.cardinality() <= EXACT_SEARCH_LIMIT) {
+            return searchExact(query, topK, filter, liveOrds, hiddenOrds);
+        }
+        Bits acceptOrds = new Bits() {
+            @Override
+            public boolean get(int index) {
+                return (filter == null || index < filter.length() && filter.get(index))
+                       && isVisible(liveOrds, hiddenOrds, index);
+            }
+
+            @Override
+            public int length() {
+                return liveOrds.length();
+            }
+        };
+        var results = new ArrayList<SearchResult.NodeScore>();
+        int visited = 0;
+
+        var pinned = pinLayers();
+        try {
+            if (pinned.base != null && pinned.base.nodeCount() > 0) {
+                try (var view = pinned.base.getView()) {
+                    var r = searchLayer(view, query, topK, quantized, overquery, acceptOrds);
+                    results.addAll(Arrays.asList(r.getNodes()));
+                    visited += r.getVisitedCount();
+                }
+            }
+            var d = pinned.delta.getGraph();
+            if (d.size() > 0) {
+                var r = searchLayer(d.getView(), query, topK, quantized, overquery, acceptOrds);
+                results.addAll(Arrays.asList(r.getNodes()));
+                visited += r.getVisitedCount();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            pinned.unpin();
+        }
+
+        results.sort(Comparator.comparingDouble((SearchResult.NodeScore ns) -> ns.score).reversed());
+        // a node inserted during the search can be reached in both layers
+        var seen = new HashSet<Integer>();
+        var top = results.stream()
+                .filter(ns -> seen.add(ns.node))
+                .limit(topK)
+                .toArray(SearchResult.NodeScore[]::new);
+        return new SearchResult(top, visited);
+    }
+
+    /**
+     * Scores every visible member of filter against the query.
+     */
+    private @NotNull SearchResult searchExact(float @NotNull [] query,
+                                              int topK,
+                                              @NotNull FixedBitSet filter,
+                                              @NotNull FixedBitSet liveOrds,
+                                              @NotNull FixedBitSet hiddenOrds)
+    {
+        // worst result on top, so it is the one evicted
+        var top = new PriorityQueue<SearchResult.NodeScore>(Comparator.comparingDouble(ns -> ns.score));
+        int visited = 0;
+        int end = Math.min(filter.length(), Math.min(liveOrds.length(), vectors.size()));
+        for (int node = 0; node < end; node++) {
+            if (!filter.get(node) || !isVisible(liveOrds, hiddenOrds, node)) {
+                continue;
+            }
+            visited++;
+            top.add(new SearchResult.NodeScore(node, similarity.compare(query, vectors.vectorValue(node))));
+            if (top.size() > topK) {
+                top.poll();
+            }
+        }
+        var nodes = top.toArray(new SearchResult.NodeScore[0]);
+        Arrays.sort(nodes, Comparator.comparingDouble((SearchResult.NodeScore ns) -> ns.score).reversed());
+        return new SearchResult(nodes, visited);
+    }
+
+    private @NotNull SearchResult searchLayer(@NotNull GraphIndex.View<float[]> view,
+                                              float @NotNull [] query,
+                                              int topK,
+                                              @Nullable QuantizedVectors quantized,
+                                              int overquery,
+                                              @NotNull Bits acceptOrds)
+    {
+        if (quantized != null) {
+            return quantized.search(view, query, topK, overquery, acceptOrds);
+        }
+        NeighborSimilarity.ExactScoreFunction scoreFunction = node -> similarity.compare(query, vectors.vectorValue(node));
+        var searcher = new GraphSearcher.Builder<>(view).withConcurrentUpdates().build();
+        return searcher.search(scoreFunction, null, topK, acceptOrds);
+    }
+
+    /**
+     * Folds the delta layer and pending deletions into a new base layer. The previous base is loaded into a
+     * builder, delta nodes are inserted, deleted nodes are removed and their neighbors repaired, and the result
+     * is written via temp-file-and-rename before being swapped in.
+     * <p>
+     * The whole graph is on heap only for the duration of the merge. Searches keep using the old layers until
+     * the swap; the caller must hold off other mutations while this runs.
+     */
+    public synchronized void merge() throws IOException {
+        var merged = newBuilder();
+        if (layers.base != null) {
+            try (var in = new SimpleMappedReader(basePath)) {
+                in.seek(MappedGraph.HEADER_BYTES);
+                merged.load(in);
+            }
+        } else if (Files.exists(legacyBasePath)) {
+            try (var in = new SimpleMappedReader(legacyBasePath)) {
+                merged.load(in);
+            }
+        }
+        var deltaGraph = layers.delta.getGraph();
+        var deltaNodes = deltaGraph.getNodes();
+        var added = new ArrayList<Integer>();
+        while (deltaNodes.hasNext()) {
+            added.add(deltaNodes.nextInt());
+        }
+        if (isBulkLoading()) {
+            for (var ordinal : liveOrdinalsFrom(bulkLoadFrom)) {
+                added.add(ordinal);
+            }
+        }
+        insertAll(merged, added.stream().mapToInt(Integer::intValue).toArray());
+
+        var mergedGraph = merged.getGraph();
+        var nodes = mergedGraph.getNodes();
+        var toDelete = new ArrayList<Integer>();
+        while (nodes.hasNext()) {
+            int node = nodes.nextInt();
+            if (!isLive(node)) {
+                toDelete.add(node);
+            }
+        }
+        for (var node : toDelete) {
+            merged.markNodeDeleted(node);
+        }
+        merged.cleanup();
+
+        int size = vectors.size();
+        writeSnapshot(mergedGraph, size);
+        log.info(String.format("Merged %d delta nodes and %d deletions into a base graph of %d ordinals",
+                               added.size(), toDelete.size(), size));
+    }
+
+    /**
+     * Builds a graph over every vector in the store, inserting in parallel, and writes it as the base layer of a
+     * new index in directory. Used by compaction, where the store holds exactly the live vectors. Throws a
+     * CancellationException, leaving nothing written, if cancelled returns true before the graph is built.
+     */
+    public static @NotNull LayeredGraphIndex build(@NotNull MappedVectorStore vectors,
+                                                   @NotNull VectorSimilarityFunction similarity,
+                                                   @NotNull Path directory,
+                                                   @NotNull BooleanSupplier cancelled) throws IOException
+    {
+        var index = new LayeredGraphIndex(vectors, similarity, directory, List.of());
+        int size = vectors.size();
+        var builder = index.newBuilder();
+        index.insertAll(builder, IntStream.range(0, size).toArray(), cancelled);
+        builder.cleanup();
+        var bits = new FixedBitSet(Math.max(1, size));
+        if (size > 0) {
+            bits.set(0, size);
+        }
+        index.live = bits;
+        index.writeSnapshot(builder.getGraph(), size);
+        return index;
+    }
+
+    /**
+     * Writes the graph over the first size ordinals and the live bitset, empties the log, and swaps the new base
+     * in for searches.
+     */
+    private void writeSnapshot(@NotNull OnHeapGraphIndex<float[]> graph, int size) throws IOException {
+        vectors.flush();
+        writeAtomically(basePath, out -> MappedGraph.write(graph, size, out));
+        var liveSnapshot = live;
+        writeAtomically(livePath, out -> writeLive(liveSnapshot, out));
+        // everything logged so far is in the snapshot now
+        mutationLog.reset();
+
+        Files.deleteIfExists(legacyBasePath);
+
+        var old = layers;
+        layers = new Layers(MappedGraph.open(basePath, vectors), newBuilder());
+        deltaSize = 0;
+        bulkLoadFrom = Integer.MAX_VALUE;
+        // searches that pinned the old layers keep its file mapped until they finish
+        old.unpin();
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes via a temp file that is forced to disk before it is renamed over path, so that path always holds
+     * either the complete old contents or the complete new ones.
+     */
+    private static void writeAtomically(@NotNull Path path, @NotNull Writer writer) throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            writer.write(out);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeLive(@NotNull FixedBitSet bits, @NotNull DataOutputStream out) throws IOException {
+        out.writeInt(bits.length());
+        var words = bits.getBits();
+        out.writeInt(words.length);
+        for (var word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    private static @NotNull FixedBitSet readLive(@NotNull Path path) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            int numBits = in.readInt();
+            var words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return new FixedBitSet(words, numBits);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mutationLog.close();
+        layers.unpin();
+    }
+
+    /**
+     * A base and delta layer that searches see together. Reference counted: the index holds one reference while
+     * the layers are current and each search in progress holds another. The base is closed when the count drops
+     * to zero, after which the layers can no longer be pinned.
+     */
+    private static class Layers {
+        final @Nullable MappedGraph base;
+        final GraphIndexBuilder<float[]> delta;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Layers(@Nullable MappedGraph base, @NotNull GraphIndexBuilder<float[]> delta) {
+            this.base = base;
+            this.delta = delta;
+        }
+
+        boolean tryPin() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin() {
+            if (references.decrementAndGet() == 0 && base != null) {
+                base.close();
+            }
+        }
+    }
+
+    /**
+     * Pins the current layers. Fails only if a merge retires them between the read and the pin, so retrying
+     * picks up their replacement.
+     */
+    private @NotNull Layers pinLayers() {
+        while (true) {
+            var current = layers;
+            if (current.tryPin()) {
+                return current;
+            }
+        }
+    }
+}
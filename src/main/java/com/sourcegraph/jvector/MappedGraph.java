@@ -0,0 +1,206 @@
+package com.sourcegraph.jvector;
+
+import io.github.jbellis.jvector.graph.GraphIndex;
+import io.github.jbellis.jvector.graph.NodesIterator;
+import io.github.jbellis.jvector.graph.OnHeapGraphIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The base layer of a {@link LayeredGraphIndex}: a graph written by {@link OnHeapGraphIndex#save}, memory-mapped
+ * for searching. Vectors are not part of the file; they are read from the {@link MappedVectorStore}, so the index
+ * keeps one copy of each vector on disk and the same file is what a merge loads into a builder.
+ * <p>
+ * The file is an 8-byte header (magic, the number of ordinals the graph covers) followed by the builder's layout:
+ * node count, entry node and maximum degree, then each node's ordinal, neighbor count and neighbors. Opening it
+ * reads it once to find where each node's record starts, which costs 8 bytes of heap per covered ordinal.
+ * Ordinals below the covered count that have no record are nodes without edges.
+ * <p>
+ * The file is mapped in overlapping segments of about 32 MB, each extended by the longest record so that a record
+ * never straddles two, so it can exceed the 2 GB limit of a single MappedByteBuffer. Mappings are never unmapped
+ * explicitly; a search still holding a closed graph reads valid, if stale, pages.
+ */
+class MappedGraph implements GraphIndex<float[]> {
+    static final int HEADER_BYTES = 8;
+    private static final int MAGIC = 0x6a677261; // "jgra"
+    private static final long SEGMENT_BYTES = 32L << 20;
+
+    private final MappedVectorStore vectors;
+    private final int size;
+    private final int nodeCount;
+    private final int entryNode;
+    private final int maxDegree;
+    // file position of each covered ordinal's record, or -1 for a node without one
+    private final long[] offsets;
+    private final MappedByteBuffer[] segments;
+
+    private MappedGraph(@NotNull MappedVectorStore vectors,
+                        int size,
+                        int nodeCount,
+                        int entryNode,
+                        int maxDegree,
+                        long @NotNull [] offsets,
+                        @NotNull MappedByteBuffer @NotNull [] segments)
+    {
+        this.vectors = vectors;
+        this.size = size;
+        this.nodeCount = nodeCount;
+        this.entryNode = entryNode;
+        this.maxDegree = maxDegree;
+        this.offsets = offsets;
+        this.segments = segments;
+    }
+
+    /**
+     * Writes graph as a base layer covering the first size ordinals. The graph must have no deleted nodes.
+     */
+    static void write(@NotNull OnHeapGraphIndex<float[]> graph, int size, @NotNull DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(size);
+        graph.save(out);
+    }
+
+    /**
+     * Maps the base layer at path, or returns null if there is none or it was written in another format, e.g. by
+     * an older version that stored vectors inline.
+     */
+    static @Nullable MappedGraph open(@NotNull Path path, @NotNull MappedVectorStore vectors) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        int size;
+        int nodeCount;
+        int entryNode;
+        int maxDegree;
+        long[] offsets;
+        int longestRecord = 0;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            size = in.readInt();
+            nodeCount = in.readInt();
+            entryNode = in.readInt();
+            maxDegree = in.readInt();
+            offsets = new long[size];
+            Arrays.fill(offsets, -1);
+            long position = HEADER_BYTES + 3 * Integer.BYTES;
+            for (int i = 0; i < nodeCount; i++) {
+                int node = in.readInt();
+                int neighbors = in.readInt();
+                if (node < 0 || node >= size || neighbors < 0) {
+                    throw new IOException(String.format("%s is corrupt: node %d with %d neighbors", path, node, neighbors));
+                }
+                offsets[node] = position;
+                int recordBytes = (2 + neighbors) * Integer.BYTES;
+                longestRecord = Math.max(longestRecord, recordBytes);
+                in.skipNBytes((long) neighbors * Integer.BYTES);
+                position += recordBytes;
+            }
+        } catch (EOFException e) {
+            throw new IOException(path + " is truncated", e);
+        }
+
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            var segments = new MappedByteBuffer[(int) Math.max(1, (fileSize + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = i * SEGMENT_BYTES;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                          Math.min(SEGMENT_BYTES + longestRecord, fileSize - start));
+            }
+            // the mappings stay valid once the channel is closed
+            return new MappedGraph(vectors, size, nodeCount, entryNode, maxDegree, offsets, segments);
+        }
+    }
+
+    /**
+     * Number of ordinals covered, including those without a node.
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of nodes that have a record, i.e. that were in the graph when it was written.
+     */
+    int nodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public NodesIterator getNodes() {
+        var nodes = new int[nodeCount];
+        int n = 0;
+        for (int ordinal = 0; ordinal < size; ordinal++) {
+            if (offsets[ordinal] >= 0) {
+                nodes[n++] = ordinal;
+            }
+        }
+        return new NodesIterator.ArrayNodesIterator(nodes, n);
+    }
+
+    @Override
+    public View<float[]> getView() {
+        return new View<>() {
+            @Override
+            public NodesIterator getNeighborsIterator(int node) {
+                var neighbors = neighbors(node);
+                return new NodesIterator.ArrayNodesIterator(neighbors, neighbors.length);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public int entryNode() {
+                return entryNode;
+            }
+
+            @Override
+            public float[] getVector(int node) {
+                return vectors.vectorValue(node);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private int @NotNull [] neighbors(int node) {
+        long offset = node < size ? offsets[node] : -1;
+        if (offset < 0) {
+            return new int[0];
+        }
+        var segment = segments[(int) (offset / SEGMENT_BYTES)].duplicate();
+        segment.position((int) (offset % SEGMENT_BYTES) + Integer.BYTES);
+        var neighbors = new int[segment.getInt()];
+        segment.asIntBuffer().get(neighbors);
+        return neighbors;
+    }
+
+    @Override
+    public int maxDegree() {
+        return maxDegree;
+    }
+
+    @Override
+    public void close() {
+    }
+}
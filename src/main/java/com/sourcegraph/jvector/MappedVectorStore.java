@@ -0,0 +1,185 @@
+package com.sourcegraph.jvector;
+
+import io.github.jbellis.jvector.graph.RandomAccessVectorValues;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Append-only, memory-mapped store of fixed-width float vectors keyed by ordinal.
+ * <p>
+ * The file is a 16-byte header (magic, dimension, count) followed by vectors at a fixed stride of
+ * {@code dimension * 4} bytes, so vector {@code i} lives at {@code HEADER_BYTES + i * stride}. The file is mapped
+ * in 32 MB segments, so it grows in modest steps and can exceed the 2 GB limit of a single MappedByteBuffer.
+ * Vectors are read straight out of the page cache, leaving the heap cost of the store independent of its size.
+ * <p>
+ * Reads are safe from any thread. Appends must come from a single writer; an ordinal becomes visible to readers
+ * once {@link #append} returns.
+ */
+public class MappedVectorStore implements RandomAccessVectorValues<float[]>, AutoCloseable {
+    private static final int MAGIC = 0x6a766563; // "jvec"
+    private static final int HEADER_BYTES = 16;
+    private static final long SEGMENT_BYTES = 32L << 20;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final int dimension;
+    private final int stride;
+    private final int vectorsPerSegment;
+    // replaced wholesale when a segment is added, so readers never lock
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile int size;
+
+    /**
+     * Opens the store at path, creating it if necessary.
+     *
+     * @throws IOException if the file exists but was written with a different dimension or is not a vector store
+     */
+    public MappedVectorStore(@NotNull Path path, int dimension) throws IOException {
+        this.path = path;
+        this.dimension = dimension;
+        this.stride = dimension * Float.BYTES;
+        this.vectorsPerSegment = (int) Math.max(1, SEGMENT_BYTES / stride);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = channel.size() == 0;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        if (created) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, dimension);
+            header.putLong(8, 0);
+        } else {
+            if (header.getInt(0) != MAGIC) {
+                channel.close();
+                throw new IOException(path + " is not a vector store");
+            }
+            if (header.getInt(4) != dimension) {
+                var found = header.getInt(4);
+                channel.close();
+                throw new IOException(String.format("%s has dimension %d, expected %d", path, found, dimension));
+            }
+        }
+        size = (int) header.getLong(8);
+    }
+
+    public @NotNull Path getPath() {
+        return path;
+    }
+
+    /**
+     * Appends a vector and returns its ordinal.
+     */
+    public synchronized int append(float @NotNull [] vector) {
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException(String.format("Expected dimension %d, got %d", dimension, vector.length));
+        }
+        int ordinal = size;
+        var segment = segment(ordinal);
+        var floats = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .position(offsetInSegment(ordinal))
+                .asFloatBuffer();
+        floats.put(vector);
+        header.putLong(8, ordinal + 1);
+        size = ordinal + 1;
+        return ordinal;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Length of the file up to the end of the last vector; the rest of the last segment is unused.
+     */
+    public long byteSize() {
+        return HEADER_BYTES + (long) size * stride;
+    }
+
+    @Override
+    public int dimension() {
+        return dimension;
+    }
+
+    @Override
+    public float[] vectorValue(int ordinal) {
+        if (ordinal < 0 || ordinal >= size) {
+            throw new IndexOutOfBoundsException(String.format("Ordinal %d out of range [0, %d)", ordinal, size));
+        }
+        var v = new float[dimension];
+        segment(ordinal).duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .position(offsetInSegment(ordinal))
+                .asFloatBuffer()
+                .get(v);
+        return v;
+    }
+
+    /**
+     * Every call to {@link #vectorValue} returns a fresh array, so values are never shared.
+     */
+    @Override
+    public boolean isValueShared() {
+        return false;
+    }
+
+    /**
+     * The store has no per-reader state, so it can be shared rather than copied.
+     */
+    @Override
+    public RandomAccessVectorValues<float[]> copy() {
+        return this;
+    }
+
+    /**
+     * Forces appended vectors and the header to disk.
+     */
+    public synchronized void flush() {
+        for (var segment : segments) {
+            segment.force();
+        }
+        header.force();
+    }
+
+    private int offsetInSegment(int ordinal) {
+        return (ordinal % vectorsPerSegment) * stride;
+    }
+
+    private MappedByteBuffer segment(int ordinal) {
+        int index = ordinal / vectorsPerSegment;
+        var current = segments;
+        if (index < current.length) {
+            return current[index];
+        }
+        // first touch of this segment since open, or an append crossing into a new one
+        synchronized (this) {
+            current = segments;
+            while (current.length <= index) {
+                long start = HEADER_BYTES + (long) current.length * vectorsPerSegment * stride;
+                try {
+                    // mapping past the end of the file grows it
+                    var mapped = channel.map(FileChannel.MapMode.READ_WRITE, start, (long) vectorsPerSegment * stride);
+                    current = Arrays.copyOf(current, current.length + 1);
+                    current[current.length - 1] = mapped;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            segments = current;
+            return current[index];
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
@@ -1,37 +1,153 @@
 package com.sourcegraph.jvector;
 
+import com.theokanning.openai.OpenAiHttpException;
+import com.theokanning.openai.client.OpenAiApi;
+import com.theokanning.openai.embedding.Embedding;
 import com.theokanning.openai.embedding.EmbeddingRequest;
+import com.theokanning.openai.embedding.EmbeddingResult;
 import com.theokanning.openai.service.OpenAiService;
+import org.jetbrains.annotations.NotNull;
+import retrofit2.HttpException;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 public class OpenAIEmbeddingsProvider implements EmbeddingsProvider {
+    private static final String MODEL = "text-embedding-3-small";
+    private static final int DIMENSION = 1536;
+    private static final int MAX_INPUT_TOKENS = 8191;
+    private static final Duration TIMEOUT = Duration.ofSeconds(60);
+
+    // rate limits apply to the API key, so every project's provider shares one scheduler
+    private static EmbeddingScheduler sharedScheduler;
+
     private final OpenAiService service;
+    private final EmbeddingScheduler scheduler;
+    private final int maxBatchInputs = JVectorConfig.getOpenAIMaxBatchInputs();
+    private final int maxBatchTokens = JVectorConfig.getOpenAIMaxBatchTokens();
 
     public OpenAIEmbeddingsProvider() {
+        this(readKey(), JVectorConfig.getOpenAIBaseUrl(), sharedScheduler());
+    }
+
+    /**
+     * A provider for the endpoint at baseUrl, e.g. a local stub server in tests.
+     */
+    public OpenAIEmbeddingsProvider(@NotNull String key, @NotNull String baseUrl, @NotNull EmbeddingScheduler scheduler) {
+        this.scheduler = scheduler;
+        // every response, throttled or not, carries the current rate limits
+        var client = OpenAiService.defaultClient(key, TIMEOUT).newBuilder()
+                .addInterceptor(chain -> {
+                    var response = chain.proceed(chain.request());
+                    scheduler.observe(response::header);
+                    return response;
+                })
+                .build();
+        var retrofit = OpenAiService.defaultRetrofit(client, OpenAiService.defaultObjectMapper()).newBuilder()
+                .baseUrl(baseUrl.endsWith("/") ? baseUrl : baseUrl + "/")
+                .build();
+        service = new OpenAiService(retrofit.create(OpenAiApi.class));
+    }
+
+    private static @NotNull String readKey() {
         // read the key from ~/.config
-        String key;
         try {
             // TODO use a "real" codelocal config file?
-            key = Files.readString(Path.of(System.getProperty("user.home"), ".config", "openai", "openai.key")).trim();
+            return Files.readString(Path.of(System.getProperty("user.home"), ".config", "openai", "openai.key")).trim();
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-        service = new OpenAiService(key);
+    }
+
+    private static synchronized @NotNull EmbeddingScheduler sharedScheduler() {
+        if (sharedScheduler == null) {
+            sharedScheduler = new EmbeddingScheduler(JVectorConfig.getEmbeddingConcurrency(),
+                                                     JVectorConfig.getOpenAIRequestsPerMinute(),
+                                                     JVectorConfig.getOpenAITokensPerMinute(),
+                                                     JVectorConfig.getEmbeddingMaxAttempts());
+        }
+        return sharedScheduler;
     }
 
     @Override
     public float[] getEmbedding(String body) {
-        var er = EmbeddingRequest.builder()
-                .model("text-embedding-3-small")
-                .input(List.of(body))
-                .build();
-        var r = service.createEmbeddings(er);
-        List<Double> embedding = r.getData().get(0).getEmbedding();
+        return getEmbeddings(List.of(body)).get(0);
+    }
+
+    /**
+     * The embeddings endpoint accepts an array of inputs, so chunks are sent in as few requests as the
+     * configured input-count and token budgets allow. Each request goes through the {@link EmbeddingScheduler},
+     * which paces it and retries it if it is throttled or fails transiently.
+     */
+    @Override
+    public List<float[]> getEmbeddings(List<String> bodies) {
+        var embeddings = new ArrayList<float[]>(bodies.size());
+        var batches = EmbeddingBatches.partition(bodies,
+                                                 maxBatchInputs,
+                                                 maxBatchTokens,
+                                                 this::countTokens);
+        for (var batch : batches) {
+            var er = EmbeddingRequest.builder()
+                    .model(MODEL)
+                    .input(batch)
+                    .build();
+            int tokens = batch.stream().mapToInt(this::countTokens).sum();
+            var data = new ArrayList<>(scheduler.call(tokens, () -> createEmbeddings(er)).getData());
+            // results carry the index of their input; don't rely on response order
+            data.sort(Comparator.comparing(Embedding::getIndex));
+            for (var e : data) {
+                embeddings.add(toFloatArray(e.getEmbedding()));
+            }
+        }
+        return embeddings;
+    }
+
+    private @NotNull EmbeddingResult createEmbeddings(@NotNull EmbeddingRequest request) {
+        try {
+            return service.createEmbeddings(request);
+        } catch (OpenAiHttpException e) {
+            // an exhausted quota is a 429 too, but waiting does not help
+            if (e.statusCode == 429 && !"insufficient_quota".equals(e.code) || e.statusCode >= 500) {
+                throw new EmbeddingScheduler.RetryableException("Embeddings request failed with HTTP " + e.statusCode, e);
+            }
+            throw e;
+        } catch (HttpException e) {
+            // an error body that is not OpenAI's JSON, e.g. a gateway page from a proxy in front of the API
+            if (e.code() == 429 || e.code() >= 500) {
+                throw new EmbeddingScheduler.RetryableException("Embeddings request failed with HTTP " + e.code(), e);
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                // timeouts and dropped connections
+                throw new EmbeddingScheduler.RetryableException("Embeddings request failed", e);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public int maxInputTokens() {
+        return MAX_INPUT_TOKENS;
+    }
+
+    @Override
+    public int dimension() {
+        return DIMENSION;
+    }
+
+    @Override
+    public String modelId() {
+        return "openai:" + MODEL;
+    }
+
+    private static float[] toFloatArray(List<Double> embedding) {
         float[] v = new float[embedding.size()];
         for (int i = 0; i < embedding.size(); i++) {
             v[i] = embedding.get(i).floatValue();
@@ -0,0 +1,149 @@
+package com.sourcegraph.jvector;
+
+import io.github.jbellis.jvector.util.BitSet;
+import io.github.jbellis.jvector.util.FixedBitSet;
+import io.github.jbellis.jvector.util.SparseFixedBitSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The ordinals of every directory (recursively) and every language of one index generation, so that a
+ * {@link SearchFilter} becomes a bitset that the graph search applies during traversal, instead of over-fetching
+ * and dropping results afterwards.
+ * <p>
+ * Each set is a {@link SparseFixedBitSet}, which only allocates the 4096-ordinal blocks that have members. A
+ * file's chunks have adjacent ordinals, so a directory costs roughly a block header per 4096 ordinals of the
+ * index plus a word per 64 ordinals in its subtree. Sets are reallocated at twice the size when an ordinal
+ * outgrows them.
+ * <p>
+ * Updated by the index's single writer; searches resolve filters under a read lock held only while the matching
+ * sets are copied.
+ */
+class OrdinalFilters {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, SparseFixedBitSet> byDirectory = new HashMap<>();
+    private final Map<String, SparseFixedBitSet> byLanguage = new HashMap<>();
+
+    void add(@NotNull String path, int ordinal) {
+        lock.writeLock().lock();
+        try {
+            for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                set(byDirectory, path.substring(0, slash), ordinal);
+            }
+            var language = languageOf(path);
+            if (language != null) {
+                set(byLanguage, language, ordinal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(@NotNull String path, int ordinal) {
+        lock.writeLock().lock();
+        try {
+            for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                clear(byDirectory, path.substring(0, slash), ordinal);
+            }
+            var language = languageOf(path);
+            if (language != null) {
+                clear(byLanguage, language, ordinal);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ordinals that pass the filter, or null if it places no restriction.
+     */
+    @Nullable FixedBitSet resolve(@NotNull SearchFilter filter) {
+        if (filter.isEmpty()) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            FixedBitSet result = null;
+            if (!filter.directories.isEmpty()) {
+                result = union(byDirectory, filter.directories);
+            }
+            if (!filter.languages.isEmpty()) {
+                var languages = union(byLanguage, filter.languages);
+                if (result == null) {
+                    result = languages;
+                } else {
+                    result.and(languages);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static @Nullable String languageOf(@NotNull String path) {
+        int dot = path.lastIndexOf('.');
+        return dot > path.lastIndexOf('/') ? path.substring(dot + 1) : null;
+    }
+
+    private static void set(@NotNull Map<String, SparseFixedBitSet> sets, @NotNull String key, int ordinal) {
+        var bits = sets.get(key);
+        if (bits == null || ordinal >= bits.length()) {
+            bits = grow(bits, ordinal);
+            sets.put(key, bits);
+        }
+        bits.set(ordinal);
+    }
+
+    private static void clear(@NotNull Map<String, SparseFixedBitSet> sets, @NotNull String key, int ordinal) {
+        var bits = sets.get(key);
+        if (bits == null || ordinal >= bits.length()) {
+            return;
+        }
+        // an emptied set is kept: it is a few words, and counting its members would cost a pass over it
+        bits.clear(ordinal);
+    }
+
+    private static @NotNull SparseFixedBitSet grow(@Nullable SparseFixedBitSet bits, int ordinal) {
+        int length = bits == null ? 4096 : bits.length();
+        while (length <= ordinal) {
+            length = length > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : length * 2;
+        }
+        var grown = new SparseFixedBitSet(length);
+        if (bits != null) {
+            copy(bits, grown);
+        }
+        return grown;
+    }
+
+    private static @NotNull FixedBitSet union(@NotNull Map<String, SparseFixedBitSet> sets, @NotNull Iterable<String> keys) {
+        int length = 1;
+        for (var key : keys) {
+            var bits = sets.get(key);
+            if (bits != null) {
+                length = Math.max(length, bits.length());
+            }
+        }
+        var result = new FixedBitSet(length);
+        for (var key : keys) {
+            var bits = sets.get(key);
+            if (bits != null) {
+                copy(bits, result);
+            }
+        }
+        return result;
+    }
+
+    private static void copy(@NotNull SparseFixedBitSet from, @NotNull BitSet to) {
+        int length = from.length();
+        // nextSetBit returns Integer.MAX_VALUE past the last member and must not be called past the end
+        for (int i = from.nextSetBit(0); i < length; i = i + 1 < length ? from.nextSetBit(i + 1) : length) {
+            to.set(i);
+        }
+    }
+}
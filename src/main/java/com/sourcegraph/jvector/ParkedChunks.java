@@ -0,0 +1,220 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+/**
+ * The chunks {@link BranchOverlays} keeps for file versions that are not checked out: for each file, the ordinals
+ * of its parked chunks, and for each of those the branch it was indexed on.
+ * <p>
+ * Only the bookkeeping lives here. The caller hides parked ordinals from searches, keeps them out of the filters
+ * and summaries, and deletes the ordinals that parking a newer version or evicting a branch gives up.
+ */
+class ParkedChunks {
+    private final Map<String, int[]> ordinalsByFile;
+    private final Map<Integer, String> branchByOrdinal;
+
+    ParkedChunks(@NotNull Map<String, int[]> ordinalsByFile, @NotNull Map<Integer, String> branchByOrdinal) {
+        this.ordinalsByFile = ordinalsByFile;
+        this.branchByOrdinal = branchByOrdinal;
+    }
+
+    /**
+     * Parks ordinals of path, indexed on branch, in place of the chunks parked earlier for path on the same
+     * branch. Returns those earlier chunks, which the caller deletes.
+     */
+    @NotNull List<Integer> park(@NotNull String path, @NotNull String branch, @NotNull List<Integer> ordinals) {
+        var replaced = new ArrayList<Integer>();
+        if (ordinals.isEmpty()) {
+            return replaced;
+        }
+        var parked = new ArrayList<Integer>();
+        var previous = ordinalsByFile.get(path);
+        if (previous != null) {
+            for (var ordinal : previous) {
+                if (branch.equals(branchByOrdinal.get(ordinal))) {
+                    branchByOrdinal.remove(ordinal);
+                    replaced.add(ordinal);
+                } else {
+                    parked.add(ordinal);
+                }
+            }
+        }
+        for (var ordinal : ordinals) {
+            branchByOrdinal.put(ordinal, branch);
+            parked.add(ordinal);
+        }
+        ordinalsByFile.put(path, toArray(parked));
+        return replaced;
+    }
+
+    /**
+     * Takes a parked chunk of path back. Returns false if ordinal is not parked for path.
+     */
+    boolean unpark(@NotNull String path, int ordinal) {
+        var parked = ordinalsByFile.get(path);
+        if (parked == null) {
+            return false;
+        }
+        var remaining = new ArrayList<Integer>(parked.length);
+        for (var p : parked) {
+            if (p != ordinal) {
+                remaining.add(p);
+            }
+        }
+        if (remaining.size() == parked.length) {
+            return false;
+        }
+        if (remaining.isEmpty()) {
+            ordinalsByFile.remove(path);
+        } else {
+            ordinalsByFile.put(path, toArray(remaining));
+        }
+        branchByOrdinal.remove(ordinal);
+        return true;
+    }
+
+    /**
+     * Moves the chunks parked for oldPath to newPath, next to those already parked for it. Returns the moved
+     * ordinals.
+     */
+    int @NotNull [] move(@NotNull String oldPath, @NotNull String newPath) {
+        var moved = ordinalsByFile.remove(oldPath);
+        if (moved == null) {
+            return new int[0];
+        }
+        var existing = ordinalsByFile.get(newPath);
+        if (existing == null) {
+            ordinalsByFile.put(newPath, moved);
+        } else {
+            var merged = Arrays.copyOf(existing, existing.length + moved.length);
+            System.arraycopy(moved, 0, merged, existing.length, moved.length);
+            ordinalsByFile.put(newPath, merged);
+        }
+        return moved;
+    }
+
+    /**
+     * Forgets the chunks parked on the evicted branches and returns them, for the caller to delete.
+     */
+    @NotNull List<Integer> evict(@NotNull Set<String> evicted) {
+        var removed = new ArrayList<Integer>();
+        for (var entry : new ArrayList<>(ordinalsByFile.entrySet())) {
+            var remaining = new ArrayList<Integer>();
+            for (var ordinal : entry.getValue()) {
+                if (evicted.contains(branchByOrdinal.get(ordinal))) {
+                    branchByOrdinal.remove(ordinal);
+                    removed.add(ordinal);
+                } else {
+                    remaining.add(ordinal);
+                }
+            }
+            if (remaining.isEmpty()) {
+                ordinalsByFile.remove(entry.getKey());
+            } else if (remaining.size() < entry.getValue().length) {
+                ordinalsByFile.put(entry.getKey(), toArray(remaining));
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * For each chunk hash, the ordinal that already holds a chunk with that text, or -1 if it has to be embedded:
+     * one of current, the chunks of path that are searchable now, or else one parked for path on any branch.
+     * hashOf gives an ordinal's chunk hash, or null if it is unknown.
+     */
+    int @NotNull [] reusableOrdinals(@NotNull String path,
+                                     int @Nullable [] current,
+                                     @NotNull List<byte[]> chunkHashes,
+                                     @NotNull IntFunction<byte[]> hashOf)
+    {
+        var ordinalsByHash = new HashMap<ByteBuffer, Integer>();
+        // later puts win, so the chunks in use now are preferred
+        for (var ordinals : Arrays.asList(ordinalsByFile.get(path), current)) {
+            if (ordinals == null) {
+                continue;
+            }
+            for (var ordinal : ordinals) {
+                var hash = hashOf.apply(ordinal);
+                if (hash != null) {
+                    ordinalsByHash.put(ByteBuffer.wrap(hash), ordinal);
+                }
+            }
+        }
+        var reusable = new int[chunkHashes.size()];
+        for (int i = 0; i < reusable.length; i++) {
+            reusable[i] = ordinalsByHash.getOrDefault(ByteBuffer.wrap(chunkHashes.get(i)), -1);
+        }
+        return reusable;
+    }
+
+    /**
+     * What applying a new version of a file does with each of its chunks, see {@link #plan}.
+     */
+    static class UpdatePlan {
+        // per chunk, the ordinal it keeps or takes back, or -1 if it is embedded as a new ordinal
+        final int[] ordinals;
+        final Set<Integer> kept;
+        final int unparked;
+        // the chunks of the version in use that the new one no longer has, for the caller to park
+        final List<Integer> replaced;
+
+        UpdatePlan(int @NotNull [] ordinals, @NotNull Set<Integer> kept, int unparked, @NotNull List<Integer> replaced) {
+            this.ordinals = ordinals;
+            this.kept = kept;
+            this.unparked = unparked;
+            this.replaced = replaced;
+        }
+    }
+
+    /**
+     * Decides, for each chunk of a new version of a file, given the {@link #reusableOrdinals} of its chunks:
+     * a chunk of current, the version in use, keeps its ordinal, once; otherwise a parked chunk is taken back if
+     * unpark accepts it; otherwise the chunk is embedded. The chunks of current that are not kept are replaced.
+     */
+    static @NotNull UpdatePlan plan(int @Nullable [] current, int @NotNull [] reusable, @NotNull IntPredicate unpark) {
+        var inUse = new HashSet<Integer>();
+        if (current != null) {
+            for (var ordinal : current) {
+                inUse.add(ordinal);
+            }
+        }
+        var ordinals = new int[reusable.length];
+        var kept = new HashSet<Integer>();
+        int unparked = 0;
+        for (int i = 0; i < ordinals.length; i++) {
+            int reused = reusable[i];
+            // a chunk repeated in the file keeps the ordinal only once
+            if (reused >= 0 && inUse.contains(reused) && kept.add(reused)) {
+                ordinals[i] = reused;
+            } else if (reused >= 0 && unpark.test(reused)) {
+                ordinals[i] = reused;
+                unparked++;
+            } else {
+                ordinals[i] = -1;
+            }
+        }
+        var replaced = new ArrayList<Integer>();
+        for (var ordinal : inUse) {
+            if (!kept.contains(ordinal)) {
+                replaced.add(ordinal);
+            }
+        }
+        return new UpdatePlan(ordinals, kept, unparked, replaced);
+    }
+
+    private static int @NotNull [] toArray(@NotNull List<Integer> ordinals) {
+        return ordinals.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,50 @@
+package com.sourcegraph.jvector;
+
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Chunks any language through its generic PSI tree, packing sibling declarations into chunks sized by the
+ * embeddings provider's token count. Languages without a real parser have a flat PSI tree and are split by lines.
+ */
+public class PsiChunker implements Chunker {
+    private static final ChunkPacker.Tree<PsiElement> PSI_TREE = new ChunkPacker.Tree<>() {
+        @Override
+        public int start(@NotNull PsiElement node) {
+            return node.getTextRange().getStartOffset();
+        }
+
+        @Override
+        public int end(@NotNull PsiElement node) {
+            return node.getTextRange().getEndOffset();
+        }
+
+        @Override
+        public @NotNull List<PsiElement> children(@NotNull PsiElement node) {
+            // getChildren() skips leaf tokens in some languages, so walk the siblings instead
+            var children = new ArrayList<PsiElement>();
+            for (var child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                children.add(child);
+            }
+            return children;
+        }
+    };
+
+    private final ToIntFunction<String> tokenCounter;
+    private final int maxTokens;
+
+    public PsiChunker(@NotNull ToIntFunction<String> tokenCounter, int maxTokens) {
+        this.tokenCounter = tokenCounter;
+        this.maxTokens = maxTokens;
+    }
+
+    @Override
+    public @NotNull List<Chunk> chunk(@NotNull PsiFile file) {
+        return ChunkPacker.packChunks(file.getText(), file, PSI_TREE, tokenCounter, maxTokens);
+    }
+}
@@ -0,0 +1,207 @@
+package com.sourcegraph.jvector;
+
+import io.github.jbellis.jvector.disk.SimpleMappedReader;
+import io.github.jbellis.jvector.graph.GraphIndex;
+import io.github.jbellis.jvector.graph.GraphSearcher;
+import io.github.jbellis.jvector.graph.NeighborSimilarity;
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.pq.CompressedVectors;
+import io.github.jbellis.jvector.pq.ProductQuantization;
+import io.github.jbellis.jvector.util.Bits;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Product-quantized codes for every vector in a {@link MappedVectorStore}, held in memory so that graph traversal
+ * never touches full-precision vectors. Only the best candidates of a search are reranked against the raw vectors,
+ * which are read from the memory-mapped store.
+ * <p>
+ * The number of PQ subspaces (bytes per vector) is chosen so that all codes fit the configured memory budget.
+ * Codes are persisted next to the vector store and any vectors appended since the last save are encoded on load.
+ */
+public class QuantizedVectors {
+    // k-means needs a reasonable sample per centroid; below this exact search is cheap anyway
+    static final int MIN_TRAINING_VECTORS = 1024;
+
+    private final MappedVectorStore vectors;
+    private final VectorSimilarityFunction similarityFunction;
+    private final ProductQuantization pq;
+    // grown by doubling; entries past the last encoded ordinal are null
+    private volatile byte[][] codes;
+    private volatile int size;
+
+    private QuantizedVectors(@NotNull MappedVectorStore vectors,
+                             @NotNull VectorSimilarityFunction similarityFunction,
+                             @NotNull ProductQuantization pq,
+                             byte[][] codes,
+                             int size)
+    {
+        this.vectors = vectors;
+        this.similarityFunction = similarityFunction;
+        this.pq = pq;
+        this.codes = codes;
+        this.size = size;
+    }
+
+    /**
+     * Chooses the subspace count that fits codes for count vectors into budgetBytes, within sensible bounds.
+     */
+    static int subspacesFor(long budgetBytes, int count, int dimension) {
+        // each code is a separate byte[]: ~16 bytes of object header plus a reference in the codes array
+        long perVector = budgetBytes / Math.max(1, count) - 24;
+        int max = Math.max(1, dimension / 4);
+        return (int) Math.max(Math.min(8, max), Math.min(max, perVector));
+    }
+
+    /**
+     * Trains a quantizer over the vectors currently in the store and encodes all of them.
+     * Safe to run concurrently with appends; vectors appended during training must be passed to {@link #encode}.
+     */
+    public static @NotNull QuantizedVectors train(@NotNull MappedVectorStore vectors,
+                                                  @NotNull VectorSimilarityFunction similarityFunction,
+                                                  long budgetBytes)
+    {
+        int count = vectors.size();
+        int subspaces = subspacesFor(budgetBytes, count, vectors.dimension());
+        // unit-length embeddings are already centered well enough for dot product
+        var pq = ProductQuantization.compute(vectors, subspaces, false);
+        var codes = new byte[Math.max(16, count * 2)][];
+        IntStream.range(0, count).parallel().forEach(i -> codes[i] = pq.encode(vectors.vectorValue(i)));
+        return new QuantizedVectors(vectors, similarityFunction, pq, codes, count);
+    }
+
+    /**
+     * Loads codes saved by {@link #save}, encoding vectors appended to the store after that save.
+     */
+    public static @Nullable QuantizedVectors load(@NotNull Path path,
+                                                  @NotNull MappedVectorStore vectors,
+                                                  @NotNull VectorSimilarityFunction similarityFunction)
+            throws IOException
+    {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (var in = new SimpleMappedReader(path)) {
+            var pq = ProductQuantization.load(in);
+            if (pq.getOriginalDimension() != vectors.dimension()) {
+                return null;
+            }
+            int saved = in.readInt();
+            int count = vectors.size();
+            if (saved > count) {
+                // codes from a different store generation
+                return null;
+            }
+            var codes = new byte[Math.max(16, count * 2)][];
+            for (int i = 0; i < saved; i++) {
+                codes[i] = new byte[pq.getSubspaceCount()];
+                in.readFully(codes[i]);
+            }
+            for (int i = saved; i < count; i++) {
+                codes[i] = pq.encode(vectors.vectorValue(i));
+            }
+            return new QuantizedVectors(vectors, similarityFunction, pq, codes, count);
+        }
+    }
+
+    /**
+     * Returns codes for a compacted store whose ordinal i holds the vector at oldOrdinals[i] of this one, reusing
+     * the trained codebooks. Ordinals without a code in this instance are encoded from the new store.
+     */
+    public @NotNull QuantizedVectors remap(@NotNull MappedVectorStore newVectors, int @NotNull [] oldOrdinals) {
+        var current = codes;
+        var remapped = new byte[Math.max(16, oldOrdinals.length * 2)][];
+        for (int i = 0; i < oldOrdinals.length; i++) {
+            int old = oldOrdinals[i];
+            remapped[i] = old < current.length && current[old] != null ? current[old] : pq.encode(newVectors.vectorValue(i));
+        }
+        return new QuantizedVectors(newVectors, similarityFunction, pq, remapped, oldOrdinals.length);
+    }
+
+    /**
+     * Writes the codebooks and codes through a temporary file so a crash never leaves a torn file behind.
+     */
+    public void save(@NotNull Path path) throws IOException {
+        var current = codes;
+        int count = size;
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            pq.write(out);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.write(current[i]);
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Encodes a vector that was just appended to the store. Must be called by the single writer
+     * before the ordinal is added to the graph.
+     */
+    public void encode(int ordinal, float @NotNull [] vector) {
+        var current = codes;
+        if (ordinal >= current.length) {
+            current = Arrays.copyOf(current, Math.max(ordinal + 1, current.length * 2));
+        }
+        current[ordinal] = pq.encode(vector);
+        codes = current;
+        size = Math.max(size, ordinal + 1);
+    }
+
+    /**
+     * Number of leading ordinals that have codes.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getSubspaceCount() {
+        return pq.getSubspaceCount();
+    }
+
+    public long memorySize() {
+        return pq.memorySize() + (long) size * (24 + pq.getSubspaceCount()) + (long) codes.length * Integer.BYTES;
+    }
+
+    /**
+     * Searches the graph scoring with PQ codes, then reranks the best {@code topK * overquery} candidates
+     * against full-precision vectors and returns the top {@code topK}.
+     */
+    public @NotNull SearchResult search(@NotNull GraphIndex.View<float[]> view,
+                                        float @NotNull [] query,
+                                        int topK,
+                                        int overquery,
+                                        @Nullable Bits acceptOrds)
+    {
+        var snapshot = codes;
+        var cv = new CompressedVectors(pq, snapshot);
+        var approximate = cv.approximateScoreFunctionFor(query, similarityFunction);
+        // nodes inserted after the snapshot was taken have no code in it yet, so score those exactly
+        NeighborSimilarity.ApproximateScoreFunction scoreFunction = node ->
+                node < snapshot.length && snapshot[node] != null
+                ? approximate.similarityTo(node)
+                : similarityFunction.compare(query, vectors.vectorValue(node));
+        NeighborSimilarity.ReRanker<float[]> reRanker = (node, cached) -> {
+            var v = cached.get(node);
+            return similarityFunction.compare(query, v != null ? v : vectors.vectorValue(node));
+        };
+        var searcher = new GraphSearcher.Builder<>(view).withConcurrentUpdates().build();
+        var result = searcher.search(scoreFunction, reRanker, topK * Math.max(1, overquery), acceptOrds);
+        var nodes = result.getNodes();
+        if (nodes.length <= topK) {
+            return result;
+        }
+        return new SearchResult(Arrays.copyOf(nodes, topK), result.getVisitedCount());
+    }
+}
@@ -0,0 +1,145 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The order in which a scan indexes files: the ones the developer is working in first, then their neighbors in
+ * the project tree, then the rest of the project in walk order, so that searches become useful long before the
+ * scan finishes.
+ * <p>
+ * Files are ranked {@link #OPEN} (open in an editor), {@link #EDITED} (recently changed), {@link #SAME_DIRECTORY}
+ * as one of those, {@link #NEARBY} (elsewhere under the parent of such a directory), and {@link #REST}. Files
+ * opened while the scan runs are {@link #promote promoted}, along with their directory.
+ * <p>
+ * Thread-safe; paths are '/'-separated.
+ */
+class ScanQueue<T> {
+    static final int OPEN = 0;
+    static final int EDITED = 1;
+    static final int SAME_DIRECTORY = 2;
+    static final int NEARBY = 3;
+    static final int REST = 4;
+
+    private final Function<T, String> pathOf;
+    private final List<ArrayDeque<T>> byRank = new ArrayList<>();
+    // not yet polled, by path, in walk order
+    private final Map<String, T> remaining = new LinkedHashMap<>();
+    private final Map<String, List<T>> byDirectory = new HashMap<>();
+    private int lastRank = OPEN;
+
+    ScanQueue(@NotNull Collection<T> items,
+              @NotNull Function<T, String> pathOf,
+              @NotNull Collection<String> openPaths,
+              @NotNull Collection<String> editedPaths)
+    {
+        this.pathOf = pathOf;
+        for (int rank = OPEN; rank <= REST; rank++) {
+            byRank.add(new ArrayDeque<>());
+        }
+        var open = new HashSet<>(openPaths);
+        var edited = new HashSet<>(editedPaths);
+        var hotDirectories = new HashSet<String>();
+        var nearbyRoots = new HashSet<String>();
+        for (var path : open) {
+            addAncestors(path, hotDirectories, nearbyRoots);
+        }
+        for (var path : edited) {
+            addAncestors(path, hotDirectories, nearbyRoots);
+        }
+        for (var item : items) {
+            var path = pathOf.apply(item);
+            remaining.put(path, item);
+            var directory = parent(path);
+            byDirectory.computeIfAbsent(directory, d -> new ArrayList<>()).add(item);
+            int rank;
+            if (open.contains(path)) {
+                rank = OPEN;
+            } else if (edited.contains(path)) {
+                rank = EDITED;
+            } else if (hotDirectories.contains(directory)) {
+                rank = SAME_DIRECTORY;
+            } else if (isUnderAny(directory, nearbyRoots)) {
+                rank = NEARBY;
+            } else {
+                rank = REST;
+            }
+            byRank.get(rank).add(item);
+        }
+    }
+
+    /**
+     * Removes and returns the next file to index, or null once every file has been polled.
+     */
+    synchronized @Nullable T poll() {
+        for (int rank = OPEN; rank <= REST; rank++) {
+            var deque = byRank.get(rank);
+            while (!deque.isEmpty()) {
+                var item = deque.poll();
+                // promoted items are queued twice; the first poll wins
+                if (remaining.remove(pathOf.apply(item)) != null) {
+                    lastRank = rank;
+                    return item;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The rank of the file returned by the last {@link #poll}.
+     */
+    synchronized int lastRank() {
+        return lastRank;
+    }
+
+    /**
+     * Moves a file and its directory to the front, unless they have been polled already.
+     */
+    synchronized void promote(@NotNull String path) {
+        var item = remaining.get(path);
+        if (item != null) {
+            byRank.get(OPEN).addFirst(item);
+        }
+        for (var sibling : byDirectory.getOrDefault(parent(path), List.of())) {
+            if (remaining.containsKey(pathOf.apply(sibling))) {
+                byRank.get(SAME_DIRECTORY).addFirst(sibling);
+            }
+        }
+    }
+
+    synchronized int size() {
+        return remaining.size();
+    }
+
+    private static void addAncestors(@NotNull String path, @NotNull Set<String> directories, @NotNull Set<String> roots) {
+        var directory = parent(path);
+        directories.add(directory);
+        roots.add(parent(directory));
+    }
+
+    private static boolean isUnderAny(@NotNull String directory, @NotNull Set<String> roots) {
+        for (var d = directory; !d.isEmpty(); d = parent(d)) {
+            if (roots.contains(d)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static @NotNull String parent(@NotNull String path) {
+        int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "" : path.substring(0, slash);
+    }
+}
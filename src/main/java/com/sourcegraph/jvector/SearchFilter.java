@@ -0,0 +1,38 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Restricts a search to chunks of files under any of the given directories and, independently, to files in any
+ * of the given languages. An empty list or set places no restriction.
+ */
+public class SearchFilter {
+    /**
+     * Absolute directory paths, without a trailing slash.
+     */
+    public final List<String> directories;
+    /**
+     * File extensions without the dot, e.g. "java" or "kt", as in {@link JVectorConfig#getIndexedExtensions()}.
+     */
+    public final Set<String> languages;
+
+    public SearchFilter(@NotNull List<String> directories, @NotNull Set<String> languages) {
+        this.directories = List.copyOf(directories);
+        this.languages = Set.copyOf(languages);
+    }
+
+    public static @NotNull SearchFilter directories(@NotNull String... directories) {
+        return new SearchFilter(List.of(directories), Set.of());
+    }
+
+    public static @NotNull SearchFilter languages(@NotNull String... languages) {
+        return new SearchFilter(List.of(), Set.of(languages));
+    }
+
+    public boolean isEmpty() {
+        return directories.isEmpty() && languages.isEmpty();
+    }
+}
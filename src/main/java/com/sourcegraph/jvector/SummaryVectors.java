@@ -0,0 +1,287 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+
+/**
+ * The coarse level of a two-stage search: a summary vector per package (the directory a file is in), the sum of
+ * the vectors of the searchable chunks below it, and the chunk ordinals of each of its files. Chunks hidden from
+ * searches, such as those parked on other branches, are not part of it.
+ * <p>
+ * {@link #candidates} ranks the packages by the cosine of their centroid with the query, then the files of the
+ * best ones by the centroid of their chunks, and returns the chunks of the best files. Searching only those
+ * keeps the beam out of unrelated packages, and spreads results over several files instead of returning a run of
+ * near-duplicates from one.
+ * <p>
+ * Package sums cost {@code 4 * dimension} bytes of heap per package; file centroids are computed from the vector
+ * store when a search needs them, for the files of the chosen packages only.
+ * <p>
+ * Updated by the index's single writer; searches read under a read lock.
+ */
+class SummaryVectors {
+    // "sum3": summaries written before they were stamped with a version are rebuilt
+    private static final int MAGIC = 0x73756d33;
+
+    private final int dimension;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Summary> byPackage = new HashMap<>();
+
+    SummaryVectors(int dimension) {
+        this.dimension = dimension;
+    }
+
+    private static class Summary {
+        final float[] sum;
+        int count;
+        // file path to the ordinals of its chunks
+        final Map<String, int[]> files = new HashMap<>();
+
+        Summary(int dimension) {
+            this.sum = new float[dimension];
+        }
+    }
+
+    void add(@NotNull String path, int ordinal, float @NotNull [] vector) {
+        lock.writeLock().lock();
+        try {
+            var summary = byPackage.computeIfAbsent(packageOf(path), p -> new Summary(dimension));
+            for (int i = 0; i < dimension; i++) {
+                summary.sum[i] += vector[i];
+            }
+            summary.count++;
+            var ordinals = summary.files.get(path);
+            if (ordinals == null) {
+                summary.files.put(path, new int[] {ordinal});
+            } else {
+                var grown = Arrays.copyOf(ordinals, ordinals.length + 1);
+                grown[ordinals.length] = ordinal;
+                summary.files.put(path, grown);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(@NotNull String path, int ordinal, float @NotNull [] vector) {
+        lock.writeLock().lock();
+        try {
+            var pkg = packageOf(path);
+            var summary = byPackage.get(pkg);
+            var ordinals = summary == null ? null : summary.files.get(path);
+            if (ordinals == null) {
+                return;
+            }
+            int index = -1;
+            for (int i = 0; i < ordinals.length; i++) {
+                if (ordinals[i] == ordinal) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            if (ordinals.length == 1) {
+                summary.files.remove(path);
+            } else {
+                var shrunk = new int[ordinals.length - 1];
+                System.arraycopy(ordinals, 0, shrunk, 0, index);
+                System.arraycopy(ordinals, index + 1, shrunk, index, shrunk.length - index);
+                summary.files.put(path, shrunk);
+            }
+            if (--summary.count == 0) {
+                // rather than keep the rounding error of the subtractions
+                byPackage.remove(pkg);
+                return;
+            }
+            for (int i = 0; i < dimension; i++) {
+                summary.sum[i] -= vector[i];
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int packageCount() {
+        lock.readLock().lock();
+        try {
+            return byPackage.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The chunk ordinals of the maxFiles files closest to the query among those in the maxPackages packages
+     * closest to it. vectors reads a chunk's vector by ordinal.
+     */
+    int @NotNull [] candidates(float @NotNull [] query,
+                               int maxPackages,
+                               int maxFiles,
+                               @NotNull IntFunction<float[]> vectors)
+    {
+        var files = new HashMap<String, int[]>();
+        lock.readLock().lock();
+        try {
+            var packages = new ArrayList<Scored<Summary>>();
+            for (var summary : byPackage.values()) {
+                packages.add(new Scored<>(summary, cosine(query, summary.sum)));
+            }
+            for (var scored : top(packages, maxPackages)) {
+                files.putAll(scored.item.files);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // vectors are read outside the lock, so updates are not held up by a search
+        var scoredFiles = new ArrayList<Scored<int[]>>();
+        var centroid = new float[dimension];
+        for (var ordinals : files.values()) {
+            Arrays.fill(centroid, 0);
+            for (var ordinal : ordinals) {
+                var vector = vectors.apply(ordinal);
+                for (int i = 0; i < dimension; i++) {
+                    centroid[i] += vector[i];
+                }
+            }
+            scoredFiles.add(new Scored<>(ordinals, cosine(query, centroid)));
+        }
+        int count = 0;
+        var best = top(scoredFiles, maxFiles);
+        for (var scored : best) {
+            count += scored.item.length;
+        }
+        var candidates = new int[count];
+        int n = 0;
+        for (var scored : best) {
+            System.arraycopy(scored.item, 0, candidates, n, scored.item.length);
+            n += scored.item.length;
+        }
+        return candidates;
+    }
+
+    /**
+     * Writes the summaries via a temp file that is renamed over path. The stamps identify the state of the index
+     * they describe; {@link #read} only accepts the file for the same stamps.
+     */
+    void write(@NotNull Path path, long vectorCount, long chunkCount, long version) throws IOException {
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        lock.readLock().lock();
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(dimension);
+            out.writeLong(vectorCount);
+            out.writeLong(chunkCount);
+            out.writeLong(version);
+            out.writeInt(byPackage.size());
+            for (var entry : byPackage.entrySet()) {
+                var summary = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(summary.count);
+                for (var f : summary.sum) {
+                    out.writeFloat(f);
+                }
+                out.writeInt(summary.files.size());
+                for (var file : summary.files.entrySet()) {
+                    out.writeUTF(file.getKey());
+                    out.writeInt(file.getValue().length);
+                    for (var ordinal : file.getValue()) {
+                        out.writeInt(ordinal);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replaces the summaries with those written by {@link #write}. Returns false, leaving them empty, if there are
+     * none for this dimension and these stamps, e.g. because the index changed after they were written and
+     * before a crash.
+     */
+    boolean read(@NotNull Path path, long vectorCount, long chunkCount, long version) throws IOException {
+        lock.writeLock().lock();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byPackage.clear();
+            if (in.readInt() != MAGIC || in.readInt() != dimension
+                || in.readLong() != vectorCount || in.readLong() != chunkCount || in.readLong() != version) {
+                return false;
+            }
+            int packages = in.readInt();
+            for (int p = 0; p < packages; p++) {
+                var name = in.readUTF();
+                var summary = new Summary(dimension);
+                summary.count = in.readInt();
+                for (int i = 0; i < dimension; i++) {
+                    summary.sum[i] = in.readFloat();
+                }
+                int files = in.readInt();
+                for (int f = 0; f < files; f++) {
+                    var file = in.readUTF();
+                    var ordinals = new int[in.readInt()];
+                    for (int i = 0; i < ordinals.length; i++) {
+                        ordinals[i] = in.readInt();
+                    }
+                    summary.files.put(file, ordinals);
+                }
+                byPackage.put(name, summary);
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static @NotNull String packageOf(@NotNull String path) {
+        int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "" : path.substring(0, slash);
+    }
+
+    private static float cosine(float @NotNull [] query, float @NotNull [] sum) {
+        double dot = 0;
+        double norm = 0;
+        for (int i = 0; i < sum.length; i++) {
+            dot += query[i] * sum[i];
+            norm += sum[i] * sum[i];
+        }
+        return norm == 0 ? Float.NEGATIVE_INFINITY : (float) (dot / Math.sqrt(norm));
+    }
+
+    private static <T> @NotNull List<Scored<T>> top(@NotNull List<Scored<T>> scored, int count) {
+        scored.sort(Comparator.comparingDouble((Scored<T> s) -> s.score).reversed());
+        return scored.subList(0, Math.min(count, scored.size()));
+    }
+
+    private static class Scored<T> {
+        final T item;
+        final float score;
+
+        Scored(@NotNull T item, float score) {
+            this.item = item;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.sourcegraph.jvector;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shortens the vectors of an {@link EmbeddingsProvider} to their leading components, rescaled to unit length.
+ * Models trained with Matryoshka representation learning, such as OpenAI's text-embedding-3 family, concentrate
+ * information in the leading dimensions, so a prefix is a good embedding in its own right; this is what the
+ * OpenAI API does when asked for fewer dimensions. A 256-dimension index is a sixth the size of a full
+ * text-embedding-3-small one, in memory, on disk and per distance computation, for a small loss of recall.
+ * <p>
+ * Wrapping a {@link CachingEmbeddingsProvider} keeps full-width vectors in the cache, so changing the dimension
+ * re-indexes without calling the model again.
+ */
+public class TruncatingEmbeddingsProvider implements EmbeddingsProvider {
+    private final EmbeddingsProvider delegate;
+    private final int dimension;
+
+    public TruncatingEmbeddingsProvider(@NotNull EmbeddingsProvider delegate, int dimension) {
+        if (dimension < 1 || dimension > delegate.dimension()) {
+            throw new IllegalArgumentException(String.format("Cannot truncate %d dimensions to %d",
+                                                             delegate.dimension(), dimension));
+        }
+        this.delegate = delegate;
+        this.dimension = dimension;
+    }
+
+    /**
+     * Returns the first dimension components of v scaled to unit length.
+     */
+    static float @NotNull [] truncate(float @NotNull [] v, int dimension) {
+        double norm = 0;
+        for (int i = 0; i < dimension; i++) {
+            norm += (double) v[i] * v[i];
+        }
+        var truncated = new float[dimension];
+        float scale = norm == 0 ? 0 : (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < dimension; i++) {
+            truncated[i] = v[i] * scale;
+        }
+        return truncated;
+    }
+
+    @Override
+    public float[] getEmbedding(String body) {
+        return truncate(delegate.getEmbedding(body), dimension);
+    }
+
+    @Override
+    public List<float[]> getEmbeddings(List<String> bodies) {
+        var embeddings = delegate.getEmbeddings(bodies);
+        var truncated = new ArrayList<float[]>(embeddings.size());
+        for (var v : embeddings) {
+            truncated.add(truncate(v, dimension));
+        }
+        return truncated;
+    }
+
+    @Override
+    public int countTokens(String text) {
+        return delegate.countTokens(text);
+    }
+
+    @Override
+    public int maxInputTokens() {
+        return delegate.maxInputTokens();
+    }
+
+    @Override
+    public int dimension() {
+        return dimension;
+    }
+
+    @Override
+    public String modelId() {
+        return delegate.modelId() + ":" + dimension;
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
@@ -0,0 +1,19 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class BranchOverlaysTest {
+
+  @Test
+  public void shouldReadBranchFromSymbolicRef() {
+    assertThat(BranchOverlays.parseHead("ref: refs/heads/feature/search\n")).isEqualTo("feature/search");
+  }
+
+  @Test
+  public void shouldUseCommitOfDetachedHead() {
+    assertThat(BranchOverlays.parseHead("3f1c2e9a0b7d4c5e6f708192a3b4c5d6e7f80912\n"))
+        .isEqualTo("3f1c2e9a0b7d4c5e6f708192a3b4c5d6e7f80912");
+  }
+}
@@ -0,0 +1,63 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mapdb.Serializer;
+
+public class CachingEmbeddingsProviderTest {
+  @Test
+  public void shouldReopenCacheThatWasNeverClosed(@TempDir Path dir) throws IOException {
+    var path = dir.resolve("embeddings.db");
+    var db = CachingEmbeddingsProvider.openDB(path);
+    try {
+      var map = db.hashMap("embeddings:test", Serializer.STRING, Serializer.FLOAT_ARRAY).createOrOpen();
+      map.put("committed", new float[] {1, 2});
+      db.commit();
+      map.put("uncommitted", new float[] {3, 4});
+
+      // what a killed process leaves behind: the files as they are, without close()
+      var crashed = Files.createDirectory(dir.resolve("crashed"));
+      try (var files = Files.list(dir)) {
+        for (var file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+          Files.copy(file, crashed.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+
+      var reopened = CachingEmbeddingsProvider.openDB(crashed.resolve("embeddings.db"));
+      try {
+        var reopenedMap =
+            reopened.hashMap("embeddings:test", Serializer.STRING, Serializer.FLOAT_ARRAY).createOrOpen();
+        assertThat(reopenedMap.get("committed")).containsExactly(1, 2);
+        reopenedMap.put("new", new float[] {5, 6});
+        reopened.commit();
+      } finally {
+        reopened.close();
+      }
+    } finally {
+      db.close();
+    }
+  }
+
+  @Test
+  public void shouldStartOverWhenCacheIsCorrupt(@TempDir Path dir) throws IOException {
+    var path = dir.resolve("embeddings.db");
+    Files.write(path, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+
+    var db = CachingEmbeddingsProvider.openDB(path);
+    try {
+      var map = db.hashMap("embeddings:test", Serializer.STRING, Serializer.FLOAT_ARRAY).createOrOpen();
+      assertThat(map).isEmpty();
+      map.put("key", new float[] {1});
+      db.commit();
+    } finally {
+      db.close();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+public class ChunkPackerTest {
+  private static class Node {
+    final int start;
+    final int end;
+    final List<Node> children;
+
+    Node(int start, int end, Node... children) {
+      this.start = start;
+      this.end = end;
+      this.children = Arrays.asList(children);
+    }
+  }
+
+  private static final ChunkPacker.Tree<Node> TREE =
+      new ChunkPacker.Tree<>() {
+        @Override
+        public int start(@NotNull Node node) {
+          return node.start;
+        }
+
+        @Override
+        public int end(@NotNull Node node) {
+          return node.end;
+        }
+
+        @Override
+        public @NotNull List<Node> children(@NotNull Node node) {
+          return node.children;
+        }
+      };
+
+  // one token per character keeps the budgets easy to reason about
+  private static int countChars(String text) {
+    return text.length();
+  }
+
+  /** The text of each chunk packChunks returns. */
+  private static List<String> pack(String text, Node root, int maxTokens) {
+    var bodies = new ArrayList<String>();
+    for (var chunk :
+        ChunkPacker.packChunks(text, root, TREE, ChunkPackerTest::countChars, maxTokens)) {
+      bodies.add(chunk.text);
+    }
+    return bodies;
+  }
+
+  /** Builds a root whose children are the given pieces laid end to end. */
+  private static Node flat(String... pieces) {
+    var children = new ArrayList<Node>();
+    int offset = 0;
+    for (var piece : pieces) {
+      children.add(new Node(offset, offset + piece.length()));
+      offset += piece.length();
+    }
+    return new Node(0, offset, children.toArray(new Node[0]));
+  }
+
+  @Test
+  public void shouldKeepSmallRootAsOneChunk() {
+    var text = "class A { int x; }";
+    var chunks = pack(text, flat(text), 100);
+    assertThat(chunks).containsExactly(text);
+  }
+
+  @Test
+  public void shouldPackSiblingsGreedilyWithoutSplittingThem() {
+    var text = "aaaa bbbb cccc dddd ";
+    var root = flat("aaaa ", "bbbb ", "cccc ", "dddd ");
+    var chunks = pack(text, root, 10);
+    assertThat(chunks).containsExactly("aaaa bbbb", "cccc dddd");
+  }
+
+  @Test
+  public void shouldDescendIntoOversizedChildrenOnly() {
+    // header, a method too large for the budget with two statements, and a trailing field
+    var text = "hdr;m{s1;s2;}f;";
+    var method =
+        new Node(4, 13, new Node(4, 6), new Node(6, 9), new Node(9, 12), new Node(12, 13));
+    var root = new Node(0, 15, new Node(0, 4), method, new Node(13, 15));
+    var chunks = pack(text, root, 6);
+    assertThat(chunks).containsExactly("hdr;", "m{s1;", "s2;}", "f;");
+  }
+
+  @Test
+  public void shouldSplitOversizedLeavesAtLineBoundaries() {
+    var text = "line1\nline2\nline3\n";
+    var chunks = pack(text, new Node(0, text.length()), 12);
+    assertThat(chunks).containsExactly("line1\nline2", "line3");
+  }
+
+  @Test
+  public void shouldSplitOversizedLinesAtCharacterBoundaries() {
+    var text = "abcdefghij";
+    var chunks = pack(text, new Node(0, text.length()), 4);
+    assertThat(chunks).containsExactly("abcd", "efgh", "ij");
+  }
+
+  @Test
+  public void shouldDropChunksWithoutLettersOrDigits() {
+    var text = "aaaa }   ";
+    var root = flat("aaaa", " }", "   ");
+    var chunks = pack(text, root, 4);
+    assertThat(chunks).containsExactly("aaaa");
+  }
+
+  @Test
+  public void shouldRecordTheRangeOfEachStrippedChunk() {
+    var text = "aaaa bbbb cccc dddd ";
+    var root = flat("aaaa ", "bbbb ", "cccc ", "dddd ");
+    var chunks = ChunkPacker.packChunks(text, root, TREE, ChunkPackerTest::countChars, 10);
+    assertThat(chunks).hasSize(2);
+    for (var chunk : chunks) {
+      assertThat(text.substring(chunk.start, chunk.end)).isEqualTo(chunk.text);
+    }
+    assertThat(chunks.get(1).start).isEqualTo(10);
+  }
+}
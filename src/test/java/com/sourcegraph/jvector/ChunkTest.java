@@ -0,0 +1,34 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+public class ChunkTest {
+  @Test
+  public void shouldPackRangesIntoOneLong() {
+    long range = Chunk.range(123_456, Integer.MAX_VALUE);
+    assertThat(Chunk.start(range)).isEqualTo(123_456);
+    assertThat(Chunk.end(range)).isEqualTo(Integer.MAX_VALUE);
+    assertThat(Chunk.start(Chunk.range(0, 0))).isZero();
+  }
+
+  @Test
+  public void shouldRoundTripCompressedText() {
+    var text = "public int size() {\n    return size; // \u00e9\u4e2d\n}\n".repeat(20);
+    var compressed = Chunk.compress(text);
+    assertThat(compressed.length).isLessThan(text.length() / 4);
+    assertThat(Chunk.decompress(compressed)).isEqualTo(text);
+    assertThat(Chunk.decompress(Chunk.compress(""))).isEmpty();
+  }
+
+  @Test
+  public void shouldRejectTruncatedText() {
+    var compressed = Chunk.compress("x".repeat(1000) + "y".repeat(1000));
+    var truncated = Arrays.copyOf(compressed, compressed.length / 2);
+    assertThatThrownBy(() -> Chunk.decompress(truncated))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -0,0 +1,40 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class EmbeddingBatchesTest {
+
+  @Test
+  public void shouldSplitOnInputCount() {
+    List<List<String>> batches =
+        EmbeddingBatches.partition(List.of("a", "b", "c", "d", "e"), 2, 1000, String::length);
+
+    assertThat(batches).containsExactly(List.of("a", "b"), List.of("c", "d"), List.of("e"));
+  }
+
+  @Test
+  public void shouldSplitOnTokenBudget() {
+    List<List<String>> batches =
+        EmbeddingBatches.partition(List.of("aaa", "bbb", "cc", "d"), 100, 5, String::length);
+
+    assertThat(batches).containsExactly(List.of("aaa"), List.of("bbb", "cc"), List.of("d"));
+  }
+
+  @Test
+  public void shouldSendOversizedInputAlone() {
+    List<List<String>> batches =
+        EmbeddingBatches.partition(List.of("a", "bbbbbbbb", "c"), 100, 4, String::length);
+
+    assertThat(batches).containsExactly(List.of("a"), List.of("bbbbbbbb"), List.of("c"));
+  }
+
+  @Test
+  public void shouldEstimateTokensForWordsSymbolsAndIndentation() {
+    assertThat(EmbeddingBatches.estimateTokens("")).isZero();
+    assertThat(EmbeddingBatches.estimateTokens("return x;")).isEqualTo(4);
+    assertThat(EmbeddingBatches.estimateTokens("if (a) {\n    b();\n}")).isEqualTo(12);
+  }
+}
@@ -0,0 +1,127 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class EmbeddingSchedulerTest {
+  private HttpServer server;
+  private final AtomicInteger throttledResponses = new AtomicInteger();
+  private final AtomicInteger served = new AtomicInteger();
+
+  @BeforeEach
+  public void startServer() throws IOException {
+    // answers 429 until throttledResponses is used up, then 200
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext(
+        "/v1/embeddings",
+        exchange -> {
+          served.incrementAndGet();
+          var headers = exchange.getResponseHeaders();
+          headers.add("x-ratelimit-limit-requests", "3000");
+          headers.add("x-ratelimit-remaining-requests", "2999");
+          int status = throttledResponses.getAndDecrement() > 0 ? 429 : 200;
+          if (status == 429) {
+            headers.add("retry-after", "0");
+          }
+          exchange.sendResponseHeaders(status, -1);
+          exchange.close();
+        });
+    server.start();
+  }
+
+  @AfterEach
+  public void stopServer() {
+    server.stop(0);
+  }
+
+  private int post(EmbeddingScheduler scheduler) {
+    try {
+      var url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/v1/embeddings");
+      var connection = (HttpURLConnection) url.openConnection();
+      connection.setRequestMethod("POST");
+      int status = connection.getResponseCode();
+      scheduler.observe(connection::getHeaderField);
+      if (status == 429 || status >= 500) {
+        throw new EmbeddingScheduler.RetryableException("HTTP " + status, null);
+      }
+      return status;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static EmbeddingScheduler scheduler(int maxAttempts) {
+    return new EmbeddingScheduler(8, 0, 0, maxAttempts, TimeUnit.MILLISECONDS.toNanos(1));
+  }
+
+  @Test
+  public void shouldRetryThrottledRequestsAndHalveConcurrency() {
+    var scheduler = scheduler(5);
+    throttledResponses.set(2);
+
+    assertThat(scheduler.call(10, () -> post(scheduler))).isEqualTo(200);
+    assertThat(served.get()).isEqualTo(3);
+    assertThat(scheduler.concurrencyLimit()).isLessThan(8).isGreaterThanOrEqualTo(1);
+  }
+
+  @Test
+  public void shouldGiveUpAfterMaxAttempts() {
+    var scheduler = scheduler(3);
+    throttledResponses.set(10);
+
+    assertThatThrownBy(() -> scheduler.call(10, () -> post(scheduler)))
+        .isInstanceOf(EmbeddingScheduler.RetryableException.class);
+    assertThat(served.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void shouldNotRetryOtherFailures() {
+    var scheduler = scheduler(5);
+    var attempts = new AtomicInteger();
+
+    assertThatThrownBy(
+            () ->
+                scheduler.call(
+                    10,
+                    () -> {
+                      attempts.incrementAndGet();
+                      throw new IllegalArgumentException("bad request");
+                    }))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThat(attempts.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldRecoverConcurrencyAdditively() {
+    var scheduler = scheduler(5);
+    throttledResponses.set(1);
+    scheduler.call(10, () -> post(scheduler));
+    int reduced = scheduler.concurrencyLimit();
+
+    for (int i = 0; i < 64; i++) {
+      scheduler.call(10, () -> post(scheduler));
+    }
+
+    assertThat(scheduler.concurrencyLimit()).isGreaterThan(reduced).isLessThanOrEqualTo(8);
+  }
+
+  @Test
+  public void shouldParseResetDurations() {
+    assertThat(EmbeddingScheduler.parseDuration("6m0s")).isEqualTo(TimeUnit.MINUTES.toNanos(6));
+    assertThat(EmbeddingScheduler.parseDuration("1.5s")).isEqualTo(TimeUnit.MILLISECONDS.toNanos(1500));
+    assertThat(EmbeddingScheduler.parseDuration("20ms")).isEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+    assertThat(EmbeddingScheduler.parseDuration("soon")).isZero();
+  }
+}
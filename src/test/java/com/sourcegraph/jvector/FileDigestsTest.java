@@ -0,0 +1,52 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FileDigestsTest {
+  private static byte[] expected(byte[] bytes) {
+    var crc32c = new CRC32C();
+    crc32c.update(bytes);
+    var crc32 = new CRC32();
+    crc32.update(bytes);
+    return ByteBuffer.allocate(Long.BYTES)
+        .putInt((int) crc32c.getValue())
+        .putInt((int) crc32.getValue())
+        .array();
+  }
+
+  private static byte[] random(int size) {
+    var bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  @Test
+  public void shouldDigestReadAndMappedFilesAlike(@TempDir Path dir) throws IOException {
+    // empty, below one read buffer, across several, and above the mapping threshold
+    for (var size : new int[] {0, 1000, 200_000, 5 << 20}) {
+      var bytes = random(size);
+      var path = dir.resolve(size + ".bin");
+      Files.write(path, bytes);
+      assertThat(FileDigests.digest(path)).isEqualTo(expected(bytes));
+    }
+  }
+
+  @Test
+  public void shouldTellVersionsApart(@TempDir Path dir) throws IOException {
+    var path = dir.resolve("A.java");
+    Files.writeString(path, "class A {}");
+    var before = FileDigests.digest(path);
+    Files.writeString(path, "class B {}");
+    assertThat(FileDigests.digest(path)).isNotEqualTo(before);
+  }
+}
@@ -0,0 +1,88 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class GraphLogTest {
+  @TempDir Path dir;
+
+  private static List<String> replay(GraphLog log) throws Exception {
+    var records = new ArrayList<String>();
+    log.replay(o -> records.add("+" + o), o -> records.add("-" + o));
+    return records;
+  }
+
+  @Test
+  public void shouldReplaySyncedRecordsInOrder() throws Exception {
+    var path = dir.resolve("graph.log");
+    try (var log = new GraphLog(path)) {
+      replay(log);
+      log.append(GraphLog.ADD, 1);
+      log.append(GraphLog.ADD, 70000);
+      log.append(GraphLog.DELETE, 1);
+      log.sync();
+    }
+    try (var log = new GraphLog(path)) {
+      assertThat(replay(log)).containsExactly("+1", "+70000", "-1");
+    }
+  }
+
+  @Test
+  public void shouldDropTornTailAndKeepAppending() throws Exception {
+    var path = dir.resolve("graph.log");
+    try (var log = new GraphLog(path)) {
+      replay(log);
+      log.append(GraphLog.ADD, 1);
+      log.append(GraphLog.ADD, 2);
+    }
+    // simulate a crash in the middle of writing a third record
+    Files.write(path, new byte[] {GraphLog.ADD, 0, 0}, StandardOpenOption.APPEND);
+    try (var log = new GraphLog(path)) {
+      assertThat(replay(log)).containsExactly("+1", "+2");
+      log.append(GraphLog.DELETE, 2);
+    }
+    try (var log = new GraphLog(path)) {
+      assertThat(replay(log)).containsExactly("+1", "+2", "-2");
+    }
+  }
+
+  @Test
+  public void shouldStopAtCorruptRecord() throws Exception {
+    var path = dir.resolve("graph.log");
+    try (var log = new GraphLog(path)) {
+      replay(log);
+      for (int i = 0; i < 10_000; i++) {
+        log.append(GraphLog.ADD, i);
+      }
+    }
+    var bytes = Files.readAllBytes(path);
+    bytes[9 * 5000 + 2] ^= 1;
+    Files.write(path, bytes);
+    try (var log = new GraphLog(path)) {
+      assertThat(replay(log)).hasSize(5000).endsWith("+4999");
+    }
+    assertThat(Files.size(path)).isEqualTo(9 * 5000);
+  }
+
+  @Test
+  public void shouldBeEmptyAfterReset() throws Exception {
+    var path = dir.resolve("graph.log");
+    try (var log = new GraphLog(path)) {
+      replay(log);
+      log.append(GraphLog.ADD, 1);
+      log.sync();
+      log.reset();
+      log.append(GraphLog.ADD, 2);
+    }
+    try (var log = new GraphLog(path)) {
+      assertThat(replay(log)).containsExactly("+2");
+    }
+  }
+}
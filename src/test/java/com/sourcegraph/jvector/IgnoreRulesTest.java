@@ -0,0 +1,54 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+public class IgnoreRulesTest {
+
+  @Test
+  public void shouldMatchNamesAtAnyDepthAndAnchoredPathsFromTheRoot() {
+    var rules = IgnoreRules.parse("# build output\n*.min.js\n/dist\ndocs/*.md\n");
+
+    assertThat(rules.isIgnored("web/app.min.js", false)).isTrue();
+    assertThat(rules.isIgnored("dist/index.js", false)).isTrue();
+    assertThat(rules.isIgnored("web/dist/index.js", false)).isFalse();
+    assertThat(rules.isIgnored("docs/guide.md", false)).isTrue();
+    assertThat(rules.isIgnored("docs/api/guide.md", false)).isFalse();
+  }
+
+  @Test
+  public void shouldMatchDirectoryOnlyPatternsAndDoubleStars() {
+    var rules = IgnoreRules.parse("build/", "**/generated/**", "a/**/z.java");
+
+    assertThat(rules.isIgnored("build", true)).isTrue();
+    assertThat(rules.isIgnored("build", false)).isFalse();
+    assertThat(rules.isIgnored("module/build/Out.java", false)).isTrue();
+    assertThat(rules.isIgnored("src/generated/Parser.java", false)).isTrue();
+    assertThat(rules.isIgnored("a/z.java", false)).isTrue();
+    assertThat(rules.isIgnored("a/b/c/z.java", false)).isTrue();
+    assertThat(rules.isIgnored("b/z.java", false)).isFalse();
+  }
+
+  @Test
+  public void shouldLetTheLastMatchingPatternDecide() {
+    var rules = IgnoreRules.parse("*.log", "!keep.log", "logs/");
+
+    assertThat(rules.match("debug.log", false)).isTrue();
+    assertThat(rules.match("keep.log", false)).isFalse();
+    assertThat(rules.match("Main.java", false)).isNull();
+    // a file in an ignored directory cannot be re-included
+    assertThat(rules.isIgnored("logs/keep.log", false)).isTrue();
+  }
+
+  @Test
+  public void shouldSupportCharacterClassesAndEscapes() {
+    var rules = IgnoreRules.parse("*.[oa]", "file[!0-9].txt", "\\#notes");
+
+    assertThat(rules.isIgnored("lib/x.o", false)).isTrue();
+    assertThat(rules.isIgnored("lib/x.c", false)).isFalse();
+    assertThat(rules.isIgnored("fileA.txt", false)).isTrue();
+    assertThat(rules.isIgnored("file1.txt", false)).isFalse();
+    assertThat(rules.isIgnored("#notes", false)).isTrue();
+  }
+}
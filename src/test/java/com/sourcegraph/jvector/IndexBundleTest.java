@@ -0,0 +1,75 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class IndexBundleTest {
+  @TempDir Path dir;
+
+  private Path writeBundle() throws IOException {
+    var source = dir.resolve("vectors.bin");
+    Files.write(source, new byte[] {1, 2, 3, 4, 5, 6});
+    var path = dir.resolve("index.bundle");
+    IndexBundle.write(
+        path,
+        "openai:text-embedding-3-small",
+        1536,
+        "main",
+        List.of(
+            new IndexBundle.Section("vectors.bin", out -> IndexBundle.copyPrefix(source, 4, out)),
+            new IndexBundle.Section(
+                "files",
+                out -> {
+                  IndexBundle.writeString(out, "src/Main.java");
+                  IndexBundle.writeBytes(out, null);
+                })));
+    return path;
+  }
+
+  @Test
+  public void shouldReadBackHeaderAndSections() throws Exception {
+    var path = writeBundle();
+
+    try (var bundle = IndexBundle.open(path)) {
+      assertThat(bundle.modelId).isEqualTo("openai:text-embedding-3-small");
+      assertThat(bundle.dimension).isEqualTo(1536);
+      assertThat(bundle.revision).isEqualTo("main");
+      var target = dir.resolve("copy.bin");
+      bundle.copy("vectors.bin", target);
+      assertThat(Files.readAllBytes(target)).containsExactly(1, 2, 3, 4);
+      var in = bundle.read("files");
+      assertThat(IndexBundle.readString(in)).isEqualTo("src/Main.java");
+      assertThat(IndexBundle.readBytes(in)).isNull();
+      assertThat(in.read()).isEqualTo(-1);
+    }
+  }
+
+  @Test
+  public void shouldRejectCorruptBundle() throws Exception {
+    var path = writeBundle();
+    var bytes = Files.readAllBytes(path);
+    bytes[bytes.length - 10] ^= 1;
+    Files.write(path, bytes);
+
+    assertThatThrownBy(() -> IndexBundle.open(path)).isInstanceOf(IOException.class).hasMessageContaining("checksum");
+  }
+
+  @Test
+  public void shouldRejectOtherFormatVersion() throws Exception {
+    var path = writeBundle();
+    var bytes = Files.readAllBytes(path);
+    bytes[7] = (byte) (IndexBundle.FORMAT_VERSION + 1);
+    Files.write(path, bytes);
+
+    assertThatThrownBy(() -> IndexBundle.open(path))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("format version");
+  }
+}
@@ -0,0 +1,164 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.github.jbellis.jvector.util.FixedBitSet;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+public class IndexGenerationTest {
+  private static final String ONE = "/p/a/One.java";
+  private static final String TWO = "/p/b/Two.kt";
+
+  @TempDir Path dir;
+  private DB db;
+  private IndexGeneration generation;
+  private final Map<String, int[]> ordinalsByFile = new HashMap<>();
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    db = DBMaker.fileDB(dir.resolve("jvector.db").toFile()).transactionEnable().make();
+    generation =
+        IndexGeneration.open(db, dir, 0, 4, VectorSimilarityFunction.COSINE, ordinalsByFile);
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    generation.close();
+    db.close();
+  }
+
+  private static float[] vector(int ordinal) {
+    return new float[] {1 + ordinal, 2 - ordinal, ordinal * ordinal, 1};
+  }
+
+  private static byte[] hash(int ordinal) {
+    return ("chunk " + ordinal).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Adds a searchable chunk of path the way the listener does. */
+  private int add(String path) {
+    int ordinal = generation.vectors.size();
+    var vector = vector(ordinal);
+    assertThat(generation.vectors.append(vector)).isEqualTo(ordinal);
+    generation.graph.add(ordinal);
+    generation.setRange(ordinal, Chunk.range(ordinal * 100, ordinal * 100 + 50));
+    generation.filesByOrdinal.put(ordinal, path);
+    generation.filters.add(path, ordinal);
+    generation.addSummary(path, ordinal, vector);
+    generation.chunkHashesByOrdinal.put(ordinal, hash(ordinal));
+    return ordinal;
+  }
+
+  /** Indexes One with two chunks and Two with one, plus a deleted chunk and a parked one. */
+  private void populate() {
+    ordinalsByFile.put(ONE, new int[] {add(ONE), add(ONE)});
+    int deleted = add(TWO);
+    ordinalsByFile.put(TWO, new int[] {add(TWO)});
+    int parked = add(ONE);
+
+    generation.graph.markDeleted(deleted);
+    generation.filesByOrdinal.remove(deleted);
+    generation.filters.remove(TWO, deleted);
+    generation.removeSummary(TWO, deleted, vector(deleted));
+
+    assertThat(generation.parked.park(ONE, "feature", List.of(parked))).isEmpty();
+    generation.graph.hide(parked);
+    generation.filters.remove(ONE, parked);
+    generation.removeSummary(ONE, parked, vector(parked));
+  }
+
+  /** The vector and chunk hash of each ordinal, as text so they compare by value. */
+  private static List<String> chunks(IndexGeneration generation, int[] ordinals) {
+    var chunks = new ArrayList<String>();
+    for (var ordinal : ordinals) {
+      chunks.add(
+          Arrays.toString(generation.vectors.vectorValue(ordinal))
+              + " "
+              + new String(generation.chunkHashesByOrdinal.get(ordinal), StandardCharsets.UTF_8));
+    }
+    return chunks;
+  }
+
+  private static List<Integer> members(FixedBitSet bits) {
+    var members = new ArrayList<Integer>();
+    for (int i = 0; i < bits.length(); i++) {
+      if (bits.get(i)) {
+        members.add(i);
+      }
+    }
+    return members;
+  }
+
+  @Test
+  public void shouldRenumberEveryFileParkedChunkFilterAndSummary() throws IOException {
+    populate();
+    var before = new HashMap<String, List<String>>();
+    for (var entry : ordinalsByFile.entrySet()) {
+      before.put(entry.getKey(), chunks(generation, entry.getValue()));
+    }
+    var parkedBefore = chunks(generation, generation.parkedOrdinalsByFile.get(ONE));
+
+    var next =
+        generation.compact(db, dir, VectorSimilarityFunction.COSINE, ordinalsByFile, () -> false);
+    try {
+      // the deleted chunk is dropped, the parked one is kept
+      assertThat(next.number).isEqualTo(1);
+      assertThat(next.vectors.size()).isEqualTo(4);
+      for (var entry : ordinalsByFile.entrySet()) {
+        assertThat(chunks(next, entry.getValue())).isEqualTo(before.get(entry.getKey()));
+        for (var ordinal : entry.getValue()) {
+          assertThat(next.filesByOrdinal.get(ordinal)).isEqualTo(entry.getKey());
+          assertThat(next.graph.isVisible(ordinal)).isTrue();
+        }
+      }
+
+      var parked = next.parkedOrdinalsByFile.get(ONE);
+      assertThat(chunks(next, parked)).isEqualTo(parkedBefore);
+      assertThat(next.parkedBranchByOrdinal).containsOnlyKeys(parked[0]);
+      assertThat(next.parkedBranchByOrdinal.get(parked[0])).isEqualTo("feature");
+      assertThat(next.graph.isVisible(parked[0])).isFalse();
+
+      var one = ordinalsByFile.get(ONE);
+      var two = ordinalsByFile.get(TWO);
+      assertThat(members(next.filters.resolve(SearchFilter.directories("/p/a"))))
+          .containsExactlyInAnyOrder(one[0], one[1]);
+      assertThat(members(next.filters.resolve(SearchFilter.languages("kt"))))
+          .containsExactly(two[0]);
+      assertThat(next.summaries.candidates(vector(0), 10, 10, next.vectors::vectorValue))
+          .containsExactlyInAnyOrder(one[0], one[1], two[0]);
+    } finally {
+      next.close();
+    }
+  }
+
+  @Test
+  public void shouldLeaveNothingBehindWhenCancelled() {
+    populate();
+    var one = ordinalsByFile.get(ONE).clone();
+
+    assertThatThrownBy(
+            () ->
+                generation.compact(
+                    db, dir, VectorSimilarityFunction.COSINE, ordinalsByFile, () -> true))
+        .isInstanceOf(CancellationException.class);
+    assertThat(Files.exists(IndexGeneration.directory(dir, 1))).isFalse();
+    assertThat(ordinalsByFile.get(ONE)).containsExactly(one);
+  }
+}
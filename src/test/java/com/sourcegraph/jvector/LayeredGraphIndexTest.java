@@ -0,0 +1,86 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.util.FixedBitSet;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LayeredGraphIndexTest {
+  private static final VectorSimilarityFunction SIMILARITY = VectorSimilarityFunction.COSINE;
+  private static final int DIMENSION = 16;
+  // a third of them are Java files, more than are searched exactly
+  private static final int COUNT = 9000;
+  private static final int TOP_K = 10;
+
+  @TempDir Path dir;
+  private final Random random = new Random(7);
+
+  private float[] randomVector() {
+    var vector = new float[DIMENSION];
+    for (int i = 0; i < DIMENSION; i++) {
+      vector[i] = (float) random.nextGaussian();
+    }
+    return vector;
+  }
+
+  private static String pathOf(int ordinal) {
+    return ordinal % 3 == 0 ? "/p/java/F" + ordinal + ".java" : "/p/kotlin/F" + ordinal + ".kt";
+  }
+
+  private static int[] nodes(SearchResult result) {
+    return Arrays.stream(result.getNodes()).mapToInt(ns -> ns.node).toArray();
+  }
+
+  @Test
+  public void shouldOnlyReturnOrdinalsThatPassTheFilter() throws IOException {
+    var filters = new OrdinalFilters();
+    try (var store = new MappedVectorStore(dir.resolve("vectors.bin"), DIMENSION)) {
+      for (int i = 0; i < COUNT; i++) {
+        filters.add(pathOf(store.append(randomVector())), i);
+      }
+      try (var graph = LayeredGraphIndex.build(store, SIMILARITY, dir, () -> false)) {
+        var java = filters.resolve(SearchFilter.languages("java"));
+        assertThat(java.cardinality()).isEqualTo(COUNT / 3);
+        // hidden ordinals stay out even when the filter lets them through
+        graph.hide(0);
+
+        for (int q = 0; q < 20; q++) {
+          var query = randomVector();
+          var result = nodes(graph.search(query, TOP_K, null, 1, java));
+          // filtered during traversal, so topK results without over-fetching
+          assertThat(result).hasSize(TOP_K);
+          for (var node : result) {
+            assertThat(node % 3).isZero();
+            assertThat(node).isNotZero();
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shouldSearchSmallFiltersExactly() throws IOException {
+    try (var store = new MappedVectorStore(dir.resolve("vectors.bin"), DIMENSION)) {
+      for (int i = 0; i < 1000; i++) {
+        store.append(randomVector());
+      }
+      try (var graph = LayeredGraphIndex.build(store, SIMILARITY, dir, () -> false)) {
+        var filter = new FixedBitSet(store.size());
+        filter.set(5);
+        filter.set(500);
+        filter.set(999);
+        graph.markDeleted(999);
+
+        var query = store.vectorValue(500);
+        assertThat(nodes(graph.search(query, TOP_K, null, 1, filter))).containsExactly(500, 5);
+      }
+    }
+  }
+}
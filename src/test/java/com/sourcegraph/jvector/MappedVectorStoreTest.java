@@ -0,0 +1,65 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedVectorStoreTest {
+  @TempDir Path tempDir;
+
+  @Test
+  public void shouldReadBackAppendedVectorsByOrdinal() throws IOException {
+    try (var store = new MappedVectorStore(tempDir.resolve("vectors.bin"), 3)) {
+      assertThat(store.append(new float[] {1, 2, 3})).isEqualTo(0);
+      assertThat(store.append(new float[] {4, 5, 6})).isEqualTo(1);
+
+      assertThat(store.size()).isEqualTo(2);
+      assertThat(store.vectorValue(1)).containsExactly(4, 5, 6);
+      assertThat(store.vectorValue(0)).containsExactly(1, 2, 3);
+    }
+  }
+
+  @Test
+  public void shouldPersistAcrossReopen() throws IOException {
+    Path path = tempDir.resolve("vectors.bin");
+    try (var store = new MappedVectorStore(path, 2)) {
+      store.append(new float[] {0.5f, -0.5f});
+    }
+
+    try (var store = new MappedVectorStore(path, 2)) {
+      assertThat(store.size()).isEqualTo(1);
+      assertThat(store.vectorValue(0)).containsExactly(0.5f, -0.5f);
+      assertThat(store.append(new float[] {1, 1})).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void shouldSpanMultipleSegments() throws IOException {
+    // 1M floats per vector -> 4 MB stride, so 32 MB segments hold 8 vectors
+    int dimension = 1 << 20;
+    try (var store = new MappedVectorStore(tempDir.resolve("vectors.bin"), dimension)) {
+      for (int i = 0; i < 10; i++) {
+        float[] v = new float[dimension];
+        v[0] = i;
+        v[dimension - 1] = -i;
+        store.append(v);
+      }
+
+      float[] last = store.vectorValue(9);
+      assertThat(last[0]).isEqualTo(9);
+      assertThat(last[dimension - 1]).isEqualTo(-9);
+    }
+  }
+
+  @Test
+  public void shouldRejectDimensionMismatch() throws IOException {
+    Path path = tempDir.resolve("vectors.bin");
+    new MappedVectorStore(path, 4).close();
+
+    assertThatThrownBy(() -> new MappedVectorStore(path, 8)).isInstanceOf(IOException.class);
+  }
+}
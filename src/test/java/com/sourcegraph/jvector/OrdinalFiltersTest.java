@@ -0,0 +1,59 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.jbellis.jvector.util.FixedBitSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class OrdinalFiltersTest {
+
+  @Test
+  public void shouldMatchFilesUnderDirectoryRecursively() {
+    OrdinalFilters filters = new OrdinalFilters();
+    filters.add("/repo/services/billing/Invoice.java", 0);
+    filters.add("/repo/services/billing/api/Client.kt", 1);
+    filters.add("/repo/services/billingx/Other.java", 2);
+    filters.add("/repo/web/app.ts", 3);
+
+    assertThat(members(filters.resolve(SearchFilter.directories("/repo/services/billing"))))
+        .containsExactly(0, 1);
+    assertThat(members(filters.resolve(SearchFilter.directories("/repo/services", "/repo/web"))))
+        .containsExactly(0, 1, 2, 3);
+  }
+
+  @Test
+  public void shouldIntersectDirectoriesWithLanguages() {
+    OrdinalFilters filters = new OrdinalFilters();
+    filters.add("/repo/services/billing/Invoice.java", 0);
+    filters.add("/repo/services/billing/api/Client.kt", 1);
+    filters.add("/repo/web/App.java", 2);
+
+    SearchFilter filter = new SearchFilter(List.of("/repo/services"), Set.of("java"));
+    assertThat(members(filters.resolve(filter))).containsExactly(0);
+  }
+
+  @Test
+  public void shouldForgetRemovedOrdinalsAndGrowPastInitialCapacity() {
+    OrdinalFilters filters = new OrdinalFilters();
+    filters.add("/repo/a/A.java", 5);
+    filters.add("/repo/a/B.java", 100_000);
+    filters.remove("/repo/a/A.java", 5);
+
+    assertThat(members(filters.resolve(SearchFilter.languages("java")))).containsExactly(100_000);
+    assertThat(members(filters.resolve(SearchFilter.languages("kt")))).isEmpty();
+    assertThat(filters.resolve(new SearchFilter(List.of(), Set.of()))).isNull();
+  }
+
+  private static List<Integer> members(FixedBitSet bits) {
+    List<Integer> members = new ArrayList<>();
+    for (int i = 0; i < bits.length(); i++) {
+      if (bits.get(i)) {
+        members.add(i);
+      }
+    }
+    return members;
+  }
+}
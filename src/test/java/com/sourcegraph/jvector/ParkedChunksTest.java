@@ -0,0 +1,140 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+public class ParkedChunksTest {
+  private static final String PATH = "/project/src/A.java";
+
+  private final Map<String, int[]> parkedOrdinalsByFile = new HashMap<>();
+  private final Map<Integer, String> parkedBranchByOrdinal = new HashMap<>();
+  private final ParkedChunks parked = new ParkedChunks(parkedOrdinalsByFile, parkedBranchByOrdinal);
+
+  // what the listener keeps per ordinal and per file, reduced to chunk hashes
+  private final Map<Integer, byte[]> chunkHashesByOrdinal = new HashMap<>();
+  private int[] current;
+  private String currentBranch;
+  private int embeddingCalls;
+
+  private static byte[] hash(String body) {
+    return body.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Indexes a version of PATH checked out on branch the way the listener applies an update: the
+   * plan decides which chunks keep or take back an ordinal, the rest are embedded, and the chunks
+   * the file no longer has are parked on the branch they were indexed on.
+   */
+  private void index(String branch, String... bodies) {
+    var chunkHashes = new ArrayList<byte[]>();
+    for (var body : bodies) {
+      chunkHashes.add(hash(body));
+    }
+    var reusable = parked.reusableOrdinals(PATH, current, chunkHashes, chunkHashesByOrdinal::get);
+    var plan = ParkedChunks.plan(current, reusable, ordinal -> parked.unpark(PATH, ordinal));
+    var ordinals = plan.ordinals;
+    for (int i = 0; i < ordinals.length; i++) {
+      if (ordinals[i] < 0) {
+        embeddingCalls++;
+        ordinals[i] = chunkHashesByOrdinal.size();
+        chunkHashesByOrdinal.put(ordinals[i], chunkHashes.get(i));
+      }
+    }
+    if (currentBranch != null) {
+      parked.park(PATH, currentBranch, plan.replaced);
+    }
+    current = ordinals;
+    currentBranch = branch;
+  }
+
+  @Test
+  public void shouldUnparkChunksByHashWhenTheirBranchIsCheckedOutAgain() {
+    index("main", "class A {", "void run() {}");
+    assertThat(embeddingCalls).isEqualTo(2);
+
+    index("feature", "class A {", "void stop() {}");
+    assertThat(embeddingCalls).isEqualTo(3);
+    assertThat(parkedOrdinalsByFile.get(PATH)).containsExactly(1);
+    assertThat(parkedBranchByOrdinal).containsEntry(1, "main");
+
+    index("main", "class A {", "void run() {}");
+    assertThat(embeddingCalls).isEqualTo(3);
+    assertThat(current).containsExactly(0, 1);
+    assertThat(parkedOrdinalsByFile.get(PATH)).containsExactly(2);
+    assertThat(parkedBranchByOrdinal).containsOnlyKeys(2).containsEntry(2, "feature");
+  }
+
+  @Test
+  public void shouldKeepEachOrdinalInUseOnlyOnce() {
+    var unparked = new ArrayList<Integer>();
+    var plan =
+        ParkedChunks.plan(
+            new int[] {4, 5, 6},
+            new int[] {5, 5, 9, 8, -1},
+            ordinal -> ordinal == 9 && unparked.add(ordinal));
+    // the repeated chunk and the one whose parked ordinal is gone are embedded
+    assertThat(plan.ordinals).containsExactly(5, -1, 9, -1, -1);
+    assertThat(plan.kept).containsExactly(5);
+    assertThat(plan.unparked).isEqualTo(1);
+    assertThat(unparked).containsExactly(9);
+    assertThat(plan.replaced).containsExactlyInAnyOrder(4, 6);
+  }
+
+  @Test
+  public void shouldReplaceEverythingOfAFileWithoutChunks() {
+    var plan = ParkedChunks.plan(new int[] {1, 2}, new int[0], ordinal -> true);
+    assertThat(plan.ordinals).isEmpty();
+    assertThat(plan.replaced).containsExactlyInAnyOrder(1, 2);
+    assertThat(ParkedChunks.plan(null, new int[] {-1}, ordinal -> true).replaced).isEmpty();
+  }
+
+  @Test
+  public void shouldPreferChunksInUseOverParkedOnes() {
+    parked.park(PATH, "main", List.of(7));
+    chunkHashesByOrdinal.put(7, hash("same"));
+    chunkHashesByOrdinal.put(3, hash("same"));
+    var reusable =
+        parked.reusableOrdinals(
+            PATH, new int[] {3}, List.of(hash("same"), hash("new")), chunkHashesByOrdinal::get);
+    assertThat(reusable).containsExactly(3, -1);
+  }
+
+  @Test
+  public void shouldReplaceTheVersionParkedEarlierOnTheSameBranch() {
+    assertThat(parked.park(PATH, "main", List.of(1, 2))).isEmpty();
+    assertThat(parked.park(PATH, "feature", List.of(3))).isEmpty();
+    assertThat(parked.park(PATH, "main", List.of(4))).containsExactly(1, 2);
+    assertThat(parkedOrdinalsByFile.get(PATH)).containsExactly(3, 4);
+    assertThat(parkedBranchByOrdinal).containsOnlyKeys(3, 4);
+  }
+
+  @Test
+  public void shouldEvictTheChunksOfDroppedBranches() {
+    parked.park(PATH, "main", List.of(1));
+    parked.park(PATH, "old", List.of(2));
+    parked.park("/project/src/B.java", "old", List.of(3));
+    assertThat(parked.evict(Set.of("old"))).containsExactlyInAnyOrder(2, 3);
+    assertThat(parkedOrdinalsByFile).containsOnlyKeys(PATH);
+    assertThat(parkedOrdinalsByFile.get(PATH)).containsExactly(1);
+    assertThat(parkedBranchByOrdinal).containsOnlyKeys(1);
+  }
+
+  @Test
+  public void shouldMoveParkedChunksWithTheFile() {
+    var newPath = "/project/src/B.java";
+    parked.park(PATH, "main", List.of(1));
+    parked.park(newPath, "feature", List.of(2));
+    assertThat(parked.move(PATH, newPath)).containsExactly(1);
+    assertThat(parkedOrdinalsByFile).containsOnlyKeys(newPath);
+    assertThat(parkedOrdinalsByFile.get(newPath)).containsExactly(2, 1);
+    assertThat(parked.unpark(newPath, 1)).isTrue();
+    assertThat(parked.unpark(PATH, 2)).isFalse();
+  }
+}
@@ -0,0 +1,117 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.github.jbellis.jvector.graph.SearchResult;
+import io.github.jbellis.jvector.vector.VectorSimilarityFunction;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class QuantizedVectorsTest {
+  private static final VectorSimilarityFunction SIMILARITY = VectorSimilarityFunction.COSINE;
+  private static final int DIMENSION = 32;
+  private static final int COUNT = 2000;
+  private static final int TOP_K = 10;
+
+  @TempDir Path dir;
+  private final Random random = new Random(42);
+
+  private float[] randomVector() {
+    var vector = new float[DIMENSION];
+    for (int i = 0; i < DIMENSION; i++) {
+      vector[i] = (float) random.nextGaussian();
+    }
+    return vector;
+  }
+
+  private MappedVectorStore store(String name, int count) throws IOException {
+    var store = new MappedVectorStore(dir.resolve(name), DIMENSION);
+    for (int i = 0; i < count; i++) {
+      store.append(randomVector());
+    }
+    return store;
+  }
+
+  private static int[] exactTopK(MappedVectorStore store, float[] query) {
+    return IntStream.range(0, store.size())
+        .boxed()
+        .sorted(
+            Comparator.comparingDouble(
+                (Integer node) -> -SIMILARITY.compare(query, store.vectorValue(node))))
+        .limit(TOP_K)
+        .mapToInt(Integer::intValue)
+        .toArray();
+  }
+
+  private static int[] nodes(SearchResult result) {
+    return Arrays.stream(result.getNodes()).mapToInt(ns -> ns.node).toArray();
+  }
+
+  @Test
+  public void shouldFindMostOfTheExactNeighborsAfterReranking() throws IOException {
+    try (var store = store("vectors.bin", COUNT);
+        var graph = LayeredGraphIndex.build(store, SIMILARITY, dir, () -> false)) {
+      var pq = QuantizedVectors.train(store, SIMILARITY, 1L << 20);
+      assertThat(pq.size()).isEqualTo(COUNT);
+
+      int found = 0;
+      int queries = 50;
+      for (int q = 0; q < queries; q++) {
+        var query = randomVector();
+        var expected = new HashSet<Integer>();
+        for (var node : exactTopK(store, query)) {
+          expected.add(node);
+        }
+        for (var node : nodes(graph.search(query, TOP_K, pq, 5, null))) {
+          if (expected.contains(node)) {
+            found++;
+          }
+        }
+      }
+      assertThat((double) found / (queries * TOP_K)).isGreaterThanOrEqualTo(0.8);
+    }
+  }
+
+  @Test
+  public void shouldLoadSavedCodesAndEncodeVectorsAppendedSince() throws IOException {
+    var path = dir.resolve("pq.bin");
+    try (var store = store("vectors.bin", QuantizedVectors.MIN_TRAINING_VECTORS);
+        var graph = LayeredGraphIndex.build(store, SIMILARITY, dir, () -> false)) {
+      var pq = QuantizedVectors.train(store, SIMILARITY, 1L << 20);
+      pq.save(path);
+      assertThat(Files.exists(path.resolveSibling("pq.bin.tmp"))).isFalse();
+
+      var loaded = QuantizedVectors.load(path, store, SIMILARITY);
+      assertThat(loaded).isNotNull();
+      assertThat(loaded.size()).isEqualTo(store.size());
+      assertThat(loaded.getSubspaceCount()).isEqualTo(pq.getSubspaceCount());
+      assertThat(loaded.memorySize()).isEqualTo(pq.memorySize());
+      // same codebooks and codes, so the same scores and results
+      var query = randomVector();
+      assertThat(nodes(graph.search(query, TOP_K, loaded, 2, null)))
+          .containsExactly(nodes(graph.search(query, TOP_K, pq, 2, null)));
+
+      store.append(randomVector());
+      var grown = QuantizedVectors.load(path, store, SIMILARITY);
+      assertThat(grown).isNotNull();
+      assertThat(grown.size()).isEqualTo(store.size());
+    }
+
+    // codes saved for a larger store, or for another dimension, are not used
+    try (var smaller = store("smaller.bin", 10)) {
+      assertThat(QuantizedVectors.load(path, smaller, SIMILARITY)).isNull();
+      assertThat(QuantizedVectors.load(dir.resolve("missing.bin"), smaller, SIMILARITY)).isNull();
+    }
+    try (var other = new MappedVectorStore(dir.resolve("other.bin"), DIMENSION / 2)) {
+      assertThat(QuantizedVectors.load(path, other, SIMILARITY)).isNull();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+
+public class ScanQueueTest {
+  private static final List<String> FILES =
+      List.of(
+          "/p/README.md",
+          "/p/lib/Util.java",
+          "/p/src/a/A1.java",
+          "/p/src/a/A2.java",
+          "/p/src/b/B.java",
+          "/p/src/c/C.java");
+
+  private static List<String> drain(ScanQueue<String> queue) {
+    var polled = new ArrayList<String>();
+    for (var path = queue.poll(); path != null; path = queue.poll()) {
+      polled.add(path);
+    }
+    return polled;
+  }
+
+  @Test
+  public void shouldIndexOpenAndEditedFilesAndTheirNeighborsFirst() {
+    var queue =
+        new ScanQueue<>(
+            FILES, Function.identity(), List.of("/p/src/a/A2.java"), List.of("/p/src/c/C.java"));
+
+    assertThat(drain(queue))
+        .containsExactly(
+            "/p/src/a/A2.java",
+            "/p/src/c/C.java",
+            "/p/src/a/A1.java",
+            "/p/src/b/B.java",
+            "/p/README.md",
+            "/p/lib/Util.java");
+  }
+
+  @Test
+  public void shouldKeepWalkOrderWithoutHints() {
+    var queue = new ScanQueue<>(FILES, Function.identity(), List.of(), List.of());
+
+    assertThat(drain(queue)).containsExactlyElementsOf(FILES);
+    assertThat(queue.lastRank()).isEqualTo(ScanQueue.REST);
+  }
+
+  @Test
+  public void shouldPromoteFilesOpenedDuringTheScan() {
+    var queue = new ScanQueue<>(FILES, Function.identity(), List.of(), List.of());
+    assertThat(queue.poll()).isEqualTo("/p/README.md");
+
+    queue.promote("/p/src/b/B.java");
+    queue.promote("/p/README.md");
+
+    assertThat(queue.poll()).isEqualTo("/p/src/b/B.java");
+    assertThat(queue.lastRank()).isEqualTo(ScanQueue.OPEN);
+    assertThat(drain(queue))
+        .containsExactly("/p/lib/Util.java", "/p/src/a/A1.java", "/p/src/a/A2.java", "/p/src/c/C.java");
+    assertThat(queue.size()).isZero();
+  }
+}
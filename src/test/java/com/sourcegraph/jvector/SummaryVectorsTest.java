@@ -0,0 +1,74 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SummaryVectorsTest {
+  private final Map<Integer, float[]> vectors = new HashMap<>();
+
+  private void add(SummaryVectors summaries, String path, int ordinal, float... vector) {
+    vectors.put(ordinal, vector);
+    summaries.add(path, ordinal, vector);
+  }
+
+  /** Two packages pointing along x and y, with one file in the first leaning towards y. */
+  private SummaryVectors example() {
+    var summaries = new SummaryVectors(2);
+    add(summaries, "/p/a/One.java", 0, 1, 0);
+    add(summaries, "/p/a/One.java", 1, 1, 0);
+    add(summaries, "/p/a/Two.java", 2, 0.6f, 0.8f);
+    add(summaries, "/p/b/Three.java", 3, 0, 1);
+    add(summaries, "/p/b/Four.java", 4, 0, 1);
+    return summaries;
+  }
+
+  @Test
+  public void shouldSearchTheFilesOfTheClosestPackagesOnly() {
+    var summaries = example();
+    assertThat(summaries.packageCount()).isEqualTo(2);
+    assertThat(summaries.candidates(new float[] {1, 0}, 1, 10, vectors::get))
+        .containsExactlyInAnyOrder(0, 1, 2);
+    assertThat(summaries.candidates(new float[] {0, 1}, 1, 10, vectors::get))
+        .containsExactlyInAnyOrder(3, 4);
+    // within package a, Two.java is closer to y than One.java
+    assertThat(summaries.candidates(new float[] {0.2f, 0.98f}, 2, 3, vectors::get))
+        .containsExactlyInAnyOrder(2, 3, 4);
+  }
+
+  @Test
+  public void shouldForgetRemovedChunks() {
+    var summaries = example();
+    summaries.remove("/p/b/Three.java", 3, vectors.get(3));
+    summaries.remove("/p/b/Four.java", 4, vectors.get(4));
+    assertThat(summaries.packageCount()).isEqualTo(1);
+    summaries.remove("/p/a/One.java", 0, vectors.get(0));
+    assertThat(summaries.candidates(new float[] {1, 0}, 2, 10, vectors::get))
+        .containsExactlyInAnyOrder(1, 2);
+    // unknown ordinals are ignored
+    summaries.remove("/p/a/One.java", 7, new float[] {5, 5});
+    assertThat(summaries.candidates(new float[] {1, 0}, 2, 10, vectors::get)).hasSize(2);
+  }
+
+  @Test
+  public void shouldReadBackOnlyForTheSameStamps(@TempDir Path dir) throws IOException {
+    var path = dir.resolve("summaries.bin");
+    example().write(path, 5, 0, 2);
+
+    var read = new SummaryVectors(2);
+    assertThat(read.read(path, 5, 0, 2)).isTrue();
+    assertThat(read.candidates(new float[] {0, 1}, 1, 10, vectors::get))
+        .containsExactlyInAnyOrder(3, 4);
+
+    assertThat(read.read(path, 6, 0, 2)).isFalse();
+    assertThat(read.read(path, 5, 0, 3)).isFalse();
+    assertThat(read.packageCount()).isZero();
+    assertThat(new SummaryVectors(3).read(path, 5, 0, 2)).isFalse();
+    assertThat(read.read(dir.resolve("missing.bin"), 5, 0, 2)).isFalse();
+  }
+}
@@ -0,0 +1,25 @@
+package com.sourcegraph.jvector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import org.junit.jupiter.api.Test;
+
+class TruncatingEmbeddingsProviderTest {
+
+  @Test
+  public void shouldKeepLeadingComponentsAtUnitLength() {
+    float[] truncated = TruncatingEmbeddingsProvider.truncate(new float[] {3, 4, 12}, 2);
+
+    assertThat(truncated).hasSize(2);
+    assertThat(truncated[0]).isCloseTo(0.6f, within(1e-6f));
+    assertThat(truncated[1]).isCloseTo(0.8f, within(1e-6f));
+  }
+
+  @Test
+  public void shouldLeaveZeroPrefixAsZero() {
+    float[] truncated = TruncatingEmbeddingsProvider.truncate(new float[] {0, 0, 1}, 2);
+
+    assertThat(truncated).containsExactly(0, 0);
+  }
+}